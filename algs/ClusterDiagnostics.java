@@ -100,6 +100,18 @@ public class ClusterDiagnostics {
 			this.Entropy = Double.NaN;
 	}	
 	
+	//Largest difference between the measures of these diagnostics and of
+	//"other", e.g. of the same algorithm run on a rounded similarity matrix.
+	//Entropies both NaN (a single cluster) do not differ
+	public double maxDifference (ClusterDiagnostics other) {
+		double diff = Math.max(Math.abs(this.Fmeasure - other.Fmeasure), Math.abs(this.Purity - other.Purity));
+		if (Double.isNaN(this.Entropy) != Double.isNaN(other.Entropy))
+			return Double.POSITIVE_INFINITY;
+		if (!Double.isNaN(this.Entropy))
+			diff = Math.max(diff, Math.abs(this.Entropy - other.Entropy));
+		return diff;
+	}
+	
 	//Outputting the diagnostic measures
 	public String toString() {
 		java.text.DecimalFormat df = new java.text.DecimalFormat("0.0000");
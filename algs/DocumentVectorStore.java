@@ -0,0 +1,95 @@
+package com.doccluster.algs;
+
+//Holds the weight vector of every document, together with the statistics
+//of each vector the similarity calculations use, computed once per document
+//instead of once per pair of documents.
+//The vectors are sparse: the indices of their non-zero entries (nodes or
+//words) in ascending order, and the entries
+public class DocumentVectorStore {
+	private int numOfDimensions; //length of the vectors (nodes or words)
+	private int[][] docIndices;
+	private float[][] docWts;
+
+	//squared L2 norm of each vector, added up in float in index order, as
+	//the cosine similarity always has, and in double for the euclidean one
+	private float[] squaredNorms;
+	private double[] exactSquaredNorms;
+	//sum of the entries of each vector, and the sum of the squares of their
+	//differences from the mean of the vector over all numOfDimensions
+	//entries, both in double for the correlation similarity
+	private double[] sums;
+	private double[] centeredSquaredNorms;
+
+	//The store keeps the arrays, it does not copy them
+	public DocumentVectorStore (int[][] docIndices, float[][] docWts, int numOfDimensions) {
+		this.docIndices = docIndices;
+		this.docWts = docWts;
+		this.numOfDimensions = numOfDimensions;
+
+		int numOfDocs = docIndices.length;
+		this.squaredNorms = new float[numOfDocs];
+		this.exactSquaredNorms = new double[numOfDocs];
+		this.sums = new double[numOfDocs];
+		this.centeredSquaredNorms = new double[numOfDocs];
+		for (int i = 0; i < numOfDocs; i++)
+			calcStatistics(i);
+	}
+
+	//The centered sum of squares is added up from the differences from the
+	//mean, those of the entries that are 0 all at once
+	private void calcStatistics (int doc) {
+		float[] wts = this.docWts[doc];
+		float sumX2 = 0;
+		double X, sumX = 0, exactSumX2 = 0;
+		for (int k = 0; k < wts.length; k++) {
+			sumX2 += (wts[k] * wts[k]);
+			X = wts[k];
+			sumX += X;
+			exactSumX2 += X*X;
+		}
+		double meanX = sumX/this.numOfDimensions;
+		double centeredSumX2 = (this.numOfDimensions - wts.length)*meanX*meanX;
+		for (int k = 0; k < wts.length; k++) {
+			X = wts[k] - meanX;
+			centeredSumX2 += X*X;
+		}
+		this.squaredNorms[doc] = sumX2;
+		this.exactSquaredNorms[doc] = exactSumX2;
+		this.sums[doc] = sumX;
+		this.centeredSquaredNorms[doc] = centeredSumX2;
+	}
+
+	public int numOfDocs () {
+		return this.docIndices.length;
+	}
+
+	public int numOfDimensions () {
+		return this.numOfDimensions;
+	}
+
+	//indices of the non-zero entries of the vector of "doc", ascending
+	public int[] getIndices (int doc) {
+		return this.docIndices[doc];
+	}
+
+	//non-zero entries of the vector of "doc", in the order of getIndices
+	public float[] getWeights (int doc) {
+		return this.docWts[doc];
+	}
+
+	public float getSquaredNorm (int doc) {
+		return this.squaredNorms[doc];
+	}
+
+	public double getExactSquaredNorm (int doc) {
+		return this.exactSquaredNorms[doc];
+	}
+
+	public double getSum (int doc) {
+		return this.sums[doc];
+	}
+
+	public double getCenteredSquaredNorm (int doc) {
+		return this.centeredSquaredNorms[doc];
+	}
+}
@@ -8,13 +8,17 @@ import java.util.Set;
 
 public class GHACAlgorithm {
 	private int numOfDocs;
-	private float[][] simMatrix;
+	private TriangularMatrix simMatrix;
 	private final int maxIterations = 10000;
 	public List<Set<Integer>> clusters; //computed cluster structure
 	
 	public GHACAlgorithm (float[][] simMatrix) {
+		this(new HeapTriangularMatrix(simMatrix));
+	}
+	
+	public GHACAlgorithm (TriangularMatrix simMatrix) {
 		this.simMatrix = simMatrix;
-		this.numOfDocs = simMatrix.length;
+		this.numOfDocs = simMatrix.size();
 		
 		//Initializing the clusters
 		this.clusters = new ArrayList<Set<Integer>>();
@@ -80,7 +84,7 @@ public class GHACAlgorithm {
         for (Integer doc1 : c1) {
             for (Integer doc2 : c2) {
             	int i = doc1.intValue(), j = doc2.intValue();
-            	double currSimValue = (j <= i) ? this.simMatrix[i][j] : this.simMatrix[j][i];
+            	double currSimValue = this.simMatrix.get(i, j);
             	simTotal += currSimValue;
             }
         }
@@ -0,0 +1,42 @@
+package com.doccluster.algs;
+
+//TriangularMatrix kept on the heap as jagged rows: row i holds the entries
+//0 to i
+public class HeapTriangularMatrix implements TriangularMatrix {
+	private float[][] rows;
+	
+	public HeapTriangularMatrix (int size) {
+		this.rows = new float[size][];
+		for (int i = 0; i < size; i++)
+			this.rows[i] = new float[i+1];
+	}
+	
+	//Wraps the rows, which are kept, not copied. Row i needs entries 0 to i;
+	//a square matrix works as well, and only its lower triangle is used
+	public HeapTriangularMatrix (float[][] rows) {
+		this.rows = rows;
+	}
+	
+	public float[][] getRows () {
+		return this.rows;
+	}
+	
+	public int size () {
+		return this.rows.length;
+	}
+	
+	public String getFormat () {
+		return "float";
+	}
+	
+	public float get (int i, int j) {
+		return (j <= i) ? this.rows[i][j] : this.rows[j][i];
+	}
+	
+	public void set (int i, int j, float value) {
+		if (j <= i)
+			this.rows[i][j] = value;
+		else
+			this.rows[j][i] = value;
+	}
+}
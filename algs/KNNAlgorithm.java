@@ -13,7 +13,8 @@ import java.util.TreeMap;
 public class KNNAlgorithm {
 	private int kValue; //number of nearest neighbors
 	private int numOfDocs; 
-	private float[][] simMatrix;
+	private TriangularMatrix simMatrix;
+	private NeighborGraph neighborGraph; //simMatrix, when it is a neighbor graph
 	private final int maxIterations = 10000;
 	public List<Set<Integer>> clusters; //computed cluster structure
 	
@@ -21,11 +22,28 @@ public class KNNAlgorithm {
 		//if not Kvalue is specified the default value of 10 is used
 		this(10, simMatrix);
 	}
+	
+	public KNNAlgorithm (TriangularMatrix simMatrix) {
+		this(10, simMatrix);
+	}
 
 	public KNNAlgorithm (int kValue, float[][] simMatrix) {
+		this(kValue, new HeapTriangularMatrix(simMatrix));
+	}
+	
+	//From a NeighborGraph of at least the kValue most similar documents of
+	//each document, the nearest neighbors are read rather than ranked, and
+	//come out the same
+	public KNNAlgorithm (int kValue, TriangularMatrix simMatrix) {
 		this.kValue = kValue;
 		this.simMatrix = simMatrix;
-		this.numOfDocs = simMatrix.length;
+		this.numOfDocs = simMatrix.size();
+		if (simMatrix instanceof NeighborGraph) {
+			this.neighborGraph = (NeighborGraph) simMatrix;
+			if (this.neighborGraph.getK() < kValue)
+				throw new UnsupportedOperationException("The neighbor graph does not keep the " + kValue +
+									" most similar documents of each document\n");
+		}
 		
 		//Initializing the clusters
 		this.clusters = new ArrayList<Set<Integer>>();
@@ -83,23 +101,30 @@ public class KNNAlgorithm {
 	//put in that cluster which is most common among the K nearest neighbors
 	private int findNewClusterForDoc (int doc) {
 		//Finding the K nearest neighbors
-		Map<Double, List<Integer>> docSimValues = 
-			new TreeMap<Double, List<Integer>>(Collections.reverseOrder());
-		for(int i = 0; i < this.numOfDocs; i++) {
-			if (i != doc) {
-				double currSimValue = (i <= doc) ? this.simMatrix[doc][i] : this.simMatrix[i][doc];
-				List<Integer> ind = docSimValues.get(currSimValue);
-			    if(ind == null){
-			        ind = new ArrayList<Integer>();
-			        docSimValues.put(currSimValue, ind);
-			    }
-			    ind.add(i);
-			}	   
-		}
-
 		List<Integer> closestDocs = new ArrayList<Integer>();
-		for(List<Integer> arr : docSimValues.values()) {
-			closestDocs.addAll(arr);
+		if (this.neighborGraph != null) {
+			//the graph ranks them already, as below
+			int num = Math.min(this.kValue, this.neighborGraph.numOfNeighbors(doc));
+			for (int r = 0; r < num; r++)
+				closestDocs.add(this.neighborGraph.getNeighbor(doc, r));
+		} else {
+			Map<Double, List<Integer>> docSimValues = 
+				new TreeMap<Double, List<Integer>>(Collections.reverseOrder());
+			for(int i = 0; i < this.numOfDocs; i++) {
+				if (i != doc) {
+					double currSimValue = this.simMatrix.get(doc, i);
+					List<Integer> ind = docSimValues.get(currSimValue);
+				    if(ind == null){
+				        ind = new ArrayList<Integer>();
+				        docSimValues.put(currSimValue, ind);
+				    }
+				    ind.add(i);
+				}	   
+			}
+	
+			for(List<Integer> arr : docSimValues.values()) {
+				closestDocs.addAll(arr);
+			}
 		}
 
 		//Calculating the frequency of clusters in K nearest neighbors
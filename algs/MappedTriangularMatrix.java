@@ -0,0 +1,212 @@
+package com.doccluster.algs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+//TriangularMatrix kept in a file mapped into memory, so it is not limited
+//by the heap, nor by RAM: the pages in use are brought in by the page cache
+//and the others written back to the file.
+//The lower triangle is packed row after row, entry (i, j) with j <= i at
+//index i*(i+1)/2 + j, after a header of int magic, int version, int size
+//and int format: 0 for float entries, 1 for half and 2 for byte, rounded
+//as in QuantizedTriangularMatrix. A single map is limited to 2 GB, so the
+//entries are mapped in chunks of CHUNK_SIZE entries
+public class MappedTriangularMatrix implements TriangularMatrix {
+	private static final int MAGIC = 0x54524958;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+
+	private static final int CHUNK_SHIFT = 28;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; //entries per chunk (1 GB of floats)
+
+	private static final String[] FORMATS = { "float", "half", "byte" };
+	private static final int[] ENTRY_SIZES = { 4, 2, 1 };
+
+	private File file;
+	private int size;
+	private int format; //index in FORMATS
+	private int entrySize;
+	private MappedByteBuffer header;
+	private MappedByteBuffer[] chunks;
+
+	private MappedTriangularMatrix (File file, FileChannel channel, FileChannel.MapMode mode, int size, int format)
+			throws IOException {
+		this.file = file;
+		this.size = size;
+		this.format = format;
+		this.entrySize = ENTRY_SIZES[format];
+		this.header = channel.map(mode, 0, HEADER_SIZE);
+		long numOfEntries = (long) size*(size + 1)/2;
+		int numOfChunks = (int) ((numOfEntries + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+		this.chunks = new MappedByteBuffer[numOfChunks];
+		for (int c = 0; c < numOfChunks; c++) {
+			long first = (long) c << CHUNK_SHIFT;
+			long length = Math.min(CHUNK_SIZE, numOfEntries - first);
+			this.chunks[c] = channel.map(mode, HEADER_SIZE + this.entrySize*first, this.entrySize*length);
+		}
+	}
+
+	//Creates a matrix of "size" documents in file "matrixFile", replacing
+	//the file if it exists. All the entries start at 0
+	public static MappedTriangularMatrix create (String matrixFile, int size) throws IOException {
+		return create(matrixFile, size, "float");
+	}
+	
+	//argument "format" is float, half or byte
+	public static MappedTriangularMatrix create (String matrixFile, int size, String format) throws IOException {
+		int formatCode = Arrays.asList(FORMATS).indexOf(format);
+		if (formatCode < 0)
+			throw new UnsupportedOperationException("Unknown matrix format: " + format + "\n");
+		File file = new File(matrixFile);
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			//truncating first, so no entry of an earlier matrix is left
+			raf.setLength(0);
+			raf.setLength(HEADER_SIZE + ENTRY_SIZES[formatCode]*((long) size*(size + 1)/2));
+			MappedTriangularMatrix matrix =
+				new MappedTriangularMatrix(file, raf.getChannel(), FileChannel.MapMode.READ_WRITE, size, formatCode);
+			matrix.header.putInt(0, MAGIC);
+			matrix.header.putInt(4, VERSION);
+			matrix.header.putInt(8, size);
+			matrix.header.putInt(12, formatCode);
+			//the maps stay valid once the file is closed
+			return matrix;
+		} finally {
+			raf.close();
+		}
+	}
+
+	//Maps a matrix written by an earlier create, read only
+	//Returns null if the file does not exist, cannot be read or is not a
+	//matrix file
+	public static MappedTriangularMatrix open (String matrixFile) {
+		File file = new File(matrixFile);
+		if (!file.exists())
+			return null;
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+				return null;
+			int size = raf.readInt();
+			int format = raf.readInt();
+			if (size < 0 || format < 0 || format >= FORMATS.length ||
+					raf.length() != HEADER_SIZE + ENTRY_SIZES[format]*((long) size*(size + 1)/2))
+				return null;
+			return new MappedTriangularMatrix(file, raf.getChannel(), FileChannel.MapMode.READ_ONLY, size, format);
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			return null;
+		} finally {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	//Writes any matrix to "matrixFile" in this file format and in its own
+	//entry format, for open to map back. The entries go out through a
+	//buffer, row after row. A mapped matrix is flushed rather than written
+	//over when it is the file itself
+	public static void write (TriangularMatrix values, String matrixFile) throws IOException {
+		File file = new File(matrixFile);
+		if (values instanceof MappedTriangularMatrix &&
+				((MappedTriangularMatrix) values).file.getCanonicalFile().equals(file.getCanonicalFile())) {
+			((MappedTriangularMatrix) values).flush();
+			return;
+		}
+		int format = Arrays.asList(FORMATS).indexOf(values.getFormat());
+		if (format < 0)
+			throw new UnsupportedOperationException("Unknown matrix format: " + values.getFormat() + "\n");
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+		
+		FileChannel channel = new FileOutputStream(file).getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(values.size());
+			buffer.putInt(format);
+			//the rows of a neighbor graph are filled from its sparse rows,
+			//as each of its get calls searches them
+			float[] row = (values instanceof NeighborGraph) ? new float[values.size()] : null;
+			for (int i = 0; i < values.size(); i++) {
+				if (row != null)
+					((NeighborGraph) values).getRow(i, row);
+				for (int j = 0; j <= i; j++) {
+					if (buffer.remaining() < 4)
+						writeBuffer(channel, buffer);
+					float value = (row != null) ? row[j] : values.get(i, j);
+					if (format == 0)
+						buffer.putFloat(value);
+					else if (format == 1)
+						buffer.putShort(QuantizedTriangularMatrix.toHalf(value));
+					else
+						buffer.put(QuantizedTriangularMatrix.toFixedPoint(value));
+				}
+			}
+			writeBuffer(channel, buffer);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	private static void writeBuffer (FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	public int size () {
+		return this.size;
+	}
+
+	public String getFormat () {
+		return FORMATS[this.format];
+	}
+
+	public float get (int i, int j) {
+		long index = (j <= i) ? (long) i*(i + 1)/2 + j : (long) j*(j + 1)/2 + i;
+		MappedByteBuffer chunk = this.chunks[(int) (index >>> CHUNK_SHIFT)];
+		int position = this.entrySize*((int) index & (CHUNK_SIZE - 1));
+		if (this.format == 0)
+			return chunk.getFloat(position);
+		else if (this.format == 1)
+			return QuantizedTriangularMatrix.fromHalf(chunk.getShort(position));
+		else
+			return QuantizedTriangularMatrix.fromFixedPoint(chunk.get(position));
+	}
+
+	public void set (int i, int j, float value) {
+		long index = (j <= i) ? (long) i*(i + 1)/2 + j : (long) j*(j + 1)/2 + i;
+		MappedByteBuffer chunk = this.chunks[(int) (index >>> CHUNK_SHIFT)];
+		int position = this.entrySize*((int) index & (CHUNK_SIZE - 1));
+		if (this.format == 0)
+			chunk.putFloat(position, value);
+		else if (this.format == 1)
+			chunk.putShort(position, QuantizedTriangularMatrix.toHalf(value));
+		else
+			chunk.put(position, QuantizedTriangularMatrix.toFixedPoint(value));
+	}
+
+	//Writes the entries set so far back to the file
+	public void flush () {
+		for (int c = 0; c < this.chunks.length; c++)
+			this.chunks[c].force();
+		this.header.force();
+	}
+}
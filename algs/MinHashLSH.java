@@ -0,0 +1,179 @@
+package com.doccluster.algs;
+
+import java.util.Arrays;
+
+import com.doccluster.suffixtree.PhraseIndex;
+
+//Candidate pairs of similar documents, for corpora too large for every
+//pair to be computed: documents whose sets of phrases (the nodes they
+//share with other documents) are alike, found by MinHash signatures with
+//banded locality sensitive hashing.
+//The signature of a document has numOfBands*rowsPerBand entries, each the
+//least hash of its nodes under a hash function of its own, so two
+//documents agree on an entry with probability the Jaccard similarity s of
+//their node sets. Two documents are a candidate pair when their
+//signatures agree on all the rows of a band, which happens for at least
+//one band with probability 1 - (1 - s^rowsPerBand)^numOfBands (see
+//candidateProbability): more bands find more of the similar pairs (recall)
+//and more candidates to compute, more rows per band fewer of both.
+//SimilarityMatrix computes the similarities of the candidate pairs only;
+//recall reports the share of the similar pairs they cover on a sample
+public class MinHashLSH {
+	private int numOfDocs;
+	private int numOfBands;
+	private int rowsPerBand;
+	//the candidate pairs, each as (larger document << 32 | smaller one),
+	//in ascending order
+	private long[] candidatePairs;
+
+	public MinHashLSH (PhraseIndex index, int numOfBands, int rowsPerBand) {
+		this(index, numOfBands, rowsPerBand, 42);
+	}
+
+	//argument "seed" picks the hash functions; the candidates of a seed are
+	//always the same
+	public MinHashLSH (PhraseIndex index, int numOfBands, int rowsPerBand, long seed) {
+		if (numOfBands <= 0 || rowsPerBand <= 0)
+			throw new UnsupportedOperationException("MinHash LSH needs bands and rows, not " + numOfBands +
+								" bands of " + rowsPerBand + " rows\n");
+		this.numOfDocs = index.numOfDocs();
+		this.numOfBands = numOfBands;
+		this.rowsPerBand = rowsPerBand;
+
+		//the nodes of each document: those of document i are
+		//docNodes[docStarts[i]] to docNodes[docStarts[i + 1] - 1]
+		int numOfNodes = index.numOfNodes();
+		int[] nodeDocs = new int[this.numOfDocs];
+		short[] nodeCounts = new short[this.numOfDocs];
+		int[] docStarts = new int[this.numOfDocs + 1];
+		for (int j = 0; j < numOfNodes; j++) {
+			int num = index.getNodeDocuments(j, nodeDocs, nodeCounts);
+			for (int k = 0; k < num; k++)
+				docStarts[nodeDocs[k] + 1]++;
+		}
+		for (int i = 0; i < this.numOfDocs; i++)
+			docStarts[i + 1] += docStarts[i];
+		int[] docNodes = new int[docStarts[this.numOfDocs]];
+		int[] nextEntry = Arrays.copyOf(docStarts, this.numOfDocs);
+		for (int j = 0; j < numOfNodes; j++) {
+			int num = index.getNodeDocuments(j, nodeDocs, nodeCounts);
+			for (int k = 0; k < num; k++)
+				docNodes[nextEntry[nodeDocs[k]]++] = j;
+		}
+
+		//a band at a time, so only rowsPerBand entries of the signatures
+		//are kept. Documents sharing no node are similar to none, and are
+		//left out
+		long[] pairs = new long[16];
+		int numOfPairs = 0;
+		long[] bandKeys = new long[this.numOfDocs];
+		long[] sortKeys = new long[this.numOfDocs];
+		long[] seeds = new long[rowsPerBand];
+		for (int band = 0; band < numOfBands; band++) {
+			for (int row = 0; row < rowsPerBand; row++)
+				seeds[row] = mix(seed + band*rowsPerBand + row);
+			int numOfKeys = 0;
+			for (int i = 0; i < this.numOfDocs; i++) {
+				if (docStarts[i] == docStarts[i + 1])
+					continue;
+				long key = band;
+				for (int row = 0; row < rowsPerBand; row++) {
+					int minHash = Integer.MAX_VALUE;
+					for (int e = docStarts[i]; e < docStarts[i + 1]; e++)
+						minHash = Math.min(minHash, (int) (mix(seeds[row] ^ docNodes[e]) >>> 32));
+					key = mix(key*31 + minHash);
+				}
+				bandKeys[i] = key;
+				//the documents are grouped by the upper half of their key
+				//first, and by the whole key within a group
+				sortKeys[numOfKeys++] = (key & 0xffffffff00000000L) | i;
+			}
+			Arrays.sort(sortKeys, 0, numOfKeys);
+
+			for (int start = 0, end; start < numOfKeys; start = end) {
+				for (end = start + 1; end < numOfKeys; end++)
+					if ((sortKeys[end] >>> 32) != (sortKeys[start] >>> 32))
+						break;
+				for (int a = start + 1; a < end; a++) {
+					int docA = (int) sortKeys[a];
+					for (int b = start; b < a; b++) {
+						int docB = (int) sortKeys[b];
+						if (bandKeys[docA] != bandKeys[docB])
+							continue;
+						if (numOfPairs == pairs.length)
+							pairs = Arrays.copyOf(pairs, 2*numOfPairs);
+						pairs[numOfPairs++] = ((long) docA << 32) | docB;
+					}
+				}
+			}
+		}
+
+		//a pair found in several bands is kept once
+		Arrays.sort(pairs, 0, numOfPairs);
+		int numOfCandidates = 0;
+		for (int p = 0; p < numOfPairs; p++)
+			if (numOfCandidates == 0 || pairs[p] != pairs[numOfCandidates - 1])
+				pairs[numOfCandidates++] = pairs[p];
+		this.candidatePairs = Arrays.copyOf(pairs, numOfCandidates);
+	}
+
+	//The SplitMix64 finalizer, as the hash functions
+	private static long mix (long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	//Probability two documents whose node sets have Jaccard similarity
+	//"jaccard" are a candidate pair
+	public static double candidateProbability (double jaccard, int numOfBands, int rowsPerBand) {
+		return 1 - Math.pow(1 - Math.pow(jaccard, rowsPerBand), numOfBands);
+	}
+
+	public int numOfDocs () {
+		return this.numOfDocs;
+	}
+
+	public int numOfBands () {
+		return this.numOfBands;
+	}
+
+	public int rowsPerBand () {
+		return this.rowsPerBand;
+	}
+
+	public int numOfCandidatePairs () {
+		return this.candidatePairs.length;
+	}
+
+	//the candidate pairs, each as (larger document << 32 | smaller one), in
+	//ascending order; not to be modified
+	public long[] getCandidatePairs () {
+		return this.candidatePairs;
+	}
+
+	public boolean isCandidate (int doc1, int doc2) {
+		long pair = (doc1 > doc2) ? ((long) doc1 << 32) | doc2 : ((long) doc2 << 32) | doc1;
+		return Arrays.binarySearch(this.candidatePairs, pair) >= 0;
+	}
+
+	//Recall of the candidates on a sample: of the pairs of a document of
+	//"sample" with any other document that are at least "minSimilarity"
+	//similar in "exact", the share that are candidate pairs; NaN if there
+	//are none. "exact" holds exact similarities at least for the rows of
+	//the sample, e.g. the full SimilarityMatrix, or the NeighborGraph of a
+	//similarity join at minSimilarity where the full matrix is too large
+	public double recall (TriangularMatrix exact, int[] sample, float minSimilarity) {
+		long numOfSimilar = 0, numOfFound = 0;
+		for (int s = 0; s < sample.length; s++) {
+			for (int j = 0; j < this.numOfDocs; j++) {
+				if (j != sample[s] && exact.get(sample[s], j) >= minSimilarity) {
+					numOfSimilar++;
+					if (isCandidate(sample[s], j))
+						numOfFound++;
+				}
+			}
+		}
+		return (double) numOfFound/numOfSimilar;
+	}
+}
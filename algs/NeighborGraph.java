@@ -0,0 +1,308 @@
+package com.doccluster.algs;
+
+import java.util.Arrays;
+
+//The k most similar documents of each document and their similarities,
+//in place of the similarity of every pair: O(numOfDocs*k) memory instead
+//of O(numOfDocs^2). Or, for a similarity join, every document at least
+//getMinSimilarity() similar to each document, as many as there are; or
+//the documents of the candidate pairs of each document (see MinHashLSH).
+//The rows are compressed sparse rows: the neighbors of
+//document i are getColumns()[getRowPointers()[i]] to
+//getColumns()[getRowPointers()[i + 1] - 1], the most similar first, with
+//their similarities at the same places in getValues(). Documents equally
+//similar come in ascending order, the order KNNAlgorithm ranks them in on
+//a full matrix, so it finds the same nearest neighbors in either.
+//As a TriangularMatrix, the similarity of a pair is the one in the row of
+//either document, and 0 for the pairs in neither row; the diagonal is 1.
+//It is read only
+public class NeighborGraph implements TriangularMatrix {
+	private int k;
+	private float minSimilarity;
+	private int[] rowPtr;
+	private int[] cols;
+	private float[] vals;
+	//the rows transposed: the documents whose rows hold each document, and
+	//the similarities there, built when first asked for by getRow
+	private int[] inRowPtr;
+	private int[] inCols;
+	private float[] inVals;
+
+	private NeighborGraph (int k, float minSimilarity, int[] rowPtr, int[] cols, float[] vals) {
+		this.k = k;
+		this.minSimilarity = minSimilarity;
+		this.rowPtr = rowPtr;
+		this.cols = cols;
+		this.vals = vals;
+	}
+
+	//The graph of the pairs of documents "docs1[p]" and "docs2[p]",
+	//"sims[p]" similar, for p from 0 to numOfPairs - 1, each pair in the
+	//rows of both documents. "minSimilarity" is the similarity the pairs
+	//were selected by, or -infinity
+	static NeighborGraph fromPairs (int numOfDocs, int[] docs1, int[] docs2, float[] sims, int numOfPairs,
+			float minSimilarity) {
+		int[] rowPtr = new int[numOfDocs + 1];
+		for (int p = 0; p < numOfPairs; p++) {
+			rowPtr[docs1[p] + 1]++;
+			rowPtr[docs2[p] + 1]++;
+		}
+		for (int i = 0; i < numOfDocs; i++)
+			rowPtr[i + 1] += rowPtr[i];
+		int[] cols = new int[rowPtr[numOfDocs]];
+		float[] vals = new float[cols.length];
+		int[] nextEntry = Arrays.copyOf(rowPtr, numOfDocs);
+		for (int p = 0; p < numOfPairs; p++) {
+			int e = nextEntry[docs1[p]]++;
+			cols[e] = docs2[p];
+			vals[e] = sims[p];
+			e = nextEntry[docs2[p]]++;
+			cols[e] = docs1[p];
+			vals[e] = sims[p];
+		}
+
+		//ranking each row by sorting keys that sort as the documents rank:
+		//the bits of the similarity, mapped to an int that orders as the
+		//float does and flipped, so the most similar comes first, above
+		//the document
+		long[] keys = new long[numOfDocs];
+		for (int i = 0; i < numOfDocs; i++) {
+			int num = rowPtr[i + 1] - rowPtr[i];
+			if (keys.length < num)
+				keys = new long[num];
+			for (int e = 0; e < num; e++) {
+				int bits = Float.floatToIntBits(vals[rowPtr[i] + e]);
+				bits ^= (bits >> 31) & 0x7fffffff;
+				keys[e] = ((long) ~bits << 32) | cols[rowPtr[i] + e];
+			}
+			Arrays.sort(keys, 0, num);
+			for (int e = 0; e < num; e++) {
+				int bits = ~((int) (keys[e] >> 32));
+				bits ^= (bits >> 31) & 0x7fffffff;
+				cols[rowPtr[i] + e] = (int) keys[e];
+				vals[rowPtr[i] + e] = Float.intBitsToFloat(bits);
+			}
+		}
+		return new NeighborGraph(0, minSimilarity, rowPtr, cols, vals);
+	}
+
+	//number of neighbors kept per document; rows have fewer only when there
+	//are fewer other documents. 0 for the other graphs
+	public int getK () {
+		return this.k;
+	}
+
+	//least similarity of the neighbors of the graph of a similarity join;
+	//-infinity for the other graphs
+	public float getMinSimilarity () {
+		return this.minSimilarity;
+	}
+
+	public int numOfNeighbors (int doc) {
+		return this.rowPtr[doc + 1] - this.rowPtr[doc];
+	}
+
+	//the neighbor of "doc" ranked "rank", counting from 0 for the most
+	//similar one
+	public int getNeighbor (int doc, int rank) {
+		return this.cols[this.rowPtr[doc] + rank];
+	}
+
+	public float getSimilarity (int doc, int rank) {
+		return this.vals[this.rowPtr[doc] + rank];
+	}
+
+	//The arrays of the rows, for walking them directly; not to be modified
+	public int[] getRowPointers () {
+		return this.rowPtr;
+	}
+
+	public int[] getColumns () {
+		return this.cols;
+	}
+
+	public float[] getValues () {
+		return this.vals;
+	}
+
+	public int size () {
+		return this.rowPtr.length - 1;
+	}
+
+	public String getFormat () {
+		return "float";
+	}
+
+	public float get (int i, int j) {
+		if (i == j)
+			return 1;
+		for (int e = this.rowPtr[i]; e < this.rowPtr[i + 1]; e++)
+			if (this.cols[e] == j)
+				return this.vals[e];
+		for (int e = this.rowPtr[j]; e < this.rowPtr[j + 1]; e++)
+			if (this.cols[e] == i)
+				return this.vals[e];
+		return 0;
+	}
+
+	public void set (int i, int j, float value) {
+		throw new UnsupportedOperationException("The neighbor graph is read only\n");
+	}
+
+	//Writes get(i, j) for every document j into "row", walking the row of
+	//"i" and the rows holding i instead of searching both rows for each j:
+	//O(size() + entries) for the row rather than O(size()*k)
+	public void getRow (int i, float[] row) {
+		buildIncoming();
+		Arrays.fill(row, 0, size(), 0);
+		for (int e = this.inRowPtr[i]; e < this.inRowPtr[i + 1]; e++)
+			row[this.inCols[e]] = this.inVals[e];
+		//the row of i comes first in get, so it is written last
+		for (int e = this.rowPtr[i]; e < this.rowPtr[i + 1]; e++)
+			row[this.cols[e]] = this.vals[e];
+		row[i] = 1;
+	}
+
+	private synchronized void buildIncoming () {
+		if (this.inRowPtr != null)
+			return;
+		int numOfDocs = size();
+		int[] inRowPtr = new int[numOfDocs + 1];
+		for (int e = 0; e < this.cols.length; e++)
+			inRowPtr[this.cols[e] + 1]++;
+		for (int i = 0; i < numOfDocs; i++)
+			inRowPtr[i + 1] += inRowPtr[i];
+		this.inCols = new int[this.cols.length];
+		this.inVals = new float[this.cols.length];
+		int[] nextEntry = Arrays.copyOf(inRowPtr, numOfDocs);
+		for (int i = 0; i < numOfDocs; i++) {
+			for (int e = this.rowPtr[i]; e < this.rowPtr[i + 1]; e++) {
+				int in = nextEntry[this.cols[e]]++;
+				this.inCols[in] = i;
+				this.inVals[in] = this.vals[e];
+			}
+		}
+		this.inRowPtr = inRowPtr;
+	}
+
+	//Collects the rows of a graph: each row keeps the k best documents
+	//offered to it in a bounded min-heap, the worst of them at the root, so
+	//a better document replaces the root. Not thread safe: offers to a row
+	//from several threads are made holding getLock(row)
+	static class Builder {
+		private static final int NUM_OF_LOCKS = 64;
+
+		private int k;
+		private int capacity; //heap size of each row, k or fewer
+		private int[] counts;
+		private int[] docs; //the heap of row i is at i*capacity
+		private float[] sims;
+		private Object[] locks;
+
+		Builder (int numOfDocs, int k) {
+			if (k <= 0)
+				throw new UnsupportedOperationException("The neighbor graph needs k > 0, not " + k + "\n");
+			this.k = k;
+			this.capacity = Math.min(k, Math.max(0, numOfDocs - 1));
+			if ((long) numOfDocs*this.capacity > Integer.MAX_VALUE)
+				throw new UnsupportedOperationException("Neighbor graph of " + numOfDocs + " documents by " +
+									k + " neighbors is too large\n");
+			this.counts = new int[numOfDocs];
+			this.docs = new int[numOfDocs*this.capacity];
+			this.sims = new float[numOfDocs*this.capacity];
+			this.locks = new Object[NUM_OF_LOCKS];
+			for (int i = 0; i < NUM_OF_LOCKS; i++)
+				this.locks[i] = new Object();
+		}
+
+		Object getLock (int row) {
+			return this.locks[row % NUM_OF_LOCKS];
+		}
+
+		//Offers document "doc", "sim" similar, to the row of "row"
+		void offer (int row, int doc, float sim) {
+			int base = row*this.capacity;
+			int count = this.counts[row];
+			if (count < this.capacity) {
+				//sifting up from the new leaf
+				int e = count;
+				while (e > 0) {
+					int parent = (e - 1) >>> 1;
+					if (!isBetter(this.sims[base + parent], this.docs[base + parent], sim, doc))
+						break;
+					this.docs[base + e] = this.docs[base + parent];
+					this.sims[base + e] = this.sims[base + parent];
+					e = parent;
+				}
+				this.docs[base + e] = doc;
+				this.sims[base + e] = sim;
+				this.counts[row] = count + 1;
+			} else if (count > 0 && isBetter(sim, doc, this.sims[base], this.docs[base]))
+				siftDown(base, count, doc, sim);
+		}
+
+		//Offers to the row of "row" the lowest numbered documents not in it
+		//yet, "sim" similar, until it is full
+		void topUp (int row, float sim) {
+			int base = row*this.capacity;
+			for (int doc = 0; this.counts[row] < this.capacity; doc++) {
+				boolean found = (doc == row);
+				for (int e = 0; e < this.counts[row] && !found; e++)
+					found = (this.docs[base + e] == doc);
+				if (!found)
+					offer(row, doc, sim);
+			}
+		}
+
+		//Puts "doc" at the root of the heap of "count" entries at "base",
+		//and sifts it down to its place
+		private void siftDown (int base, int count, int doc, float sim) {
+			int e = 0;
+			while (true) {
+				int child = 2*e + 1;
+				if (child >= count)
+					break;
+				if (child + 1 < count &&
+						isBetter(this.sims[base + child], this.docs[base + child],
+								this.sims[base + child + 1], this.docs[base + child + 1]))
+					child++;
+				if (!isBetter(sim, doc, this.sims[base + child], this.docs[base + child]))
+					break;
+				this.docs[base + e] = this.docs[base + child];
+				this.sims[base + e] = this.sims[base + child];
+				e = child;
+			}
+			this.docs[base + e] = doc;
+			this.sims[base + e] = sim;
+		}
+
+		//Whether document "doc1" ranks before "doc2": more similar, or as
+		//similar and lower numbered. Similarities compare as Double keys do
+		//in KNNAlgorithm, NaN above all
+		private static boolean isBetter (float sim1, int doc1, float sim2, int doc2) {
+			int c = Float.compare(sim1, sim2);
+			return c > 0 || (c == 0 && doc1 < doc2);
+		}
+
+		//The graph of the rows, each sorted by taking the worst entry off its
+		//heap to the end of the row, until the heap is empty
+		NeighborGraph build () {
+			int numOfDocs = this.counts.length;
+			int[] rowPtr = new int[numOfDocs + 1];
+			for (int i = 0; i < numOfDocs; i++)
+				rowPtr[i + 1] = rowPtr[i] + this.counts[i];
+			int[] cols = new int[rowPtr[numOfDocs]];
+			float[] vals = new float[rowPtr[numOfDocs]];
+			for (int i = 0; i < numOfDocs; i++) {
+				int base = i*this.capacity;
+				for (int count = this.counts[i]; count > 0; count--) {
+					cols[rowPtr[i] + count - 1] = this.docs[base];
+					vals[rowPtr[i] + count - 1] = this.sims[base];
+					if (count > 1)
+						siftDown(base, count - 1, this.docs[base + count - 1], this.sims[base + count - 1]);
+				}
+			}
+			return new NeighborGraph(this.k, Float.NEGATIVE_INFINITY, rowPtr, cols, vals);
+		}
+	}
+}
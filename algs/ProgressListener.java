@@ -0,0 +1,28 @@
+package com.doccluster.algs;
+
+//Receives the progress of a long calculation, such as the similarity
+//matrix. Calls may come from the threads of a ForkJoinPool, but never two
+//at a time, and in increasing order
+public interface ProgressListener {
+	//called with 0 at the start, then at every 10% done, and with 100 at
+	//the end
+	void progress (int percentageDone);
+	
+	//prints "%Done: 0..10..20.." and so on up to 100 on the console
+	ProgressListener CONSOLE = new ProgressListener() {
+		public void progress (int percentageDone) {
+			if (percentageDone == 0)
+				System.out.print("%Done: 0..");
+			else if (percentageDone < 100)
+				System.out.print(percentageDone + "..");
+			else
+				System.out.println("100");
+		}
+	};
+	
+	//reports nothing, e.g. for benchmarks
+	ProgressListener NONE = new ProgressListener() {
+		public void progress (int percentageDone) {
+		}
+	};
+}
@@ -9,22 +9,22 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
-import com.doccluster.suffixtree.WordSuffixTree;
+import com.doccluster.suffixtree.PhraseIndex;
 
 public class STCAlgorithm {
 	private int Kvalue; //the top K clusters
 	private final int maxIterations = 10000;
-	private WordSuffixTree wst;
+	private PhraseIndex index;
 	public List<Set<Integer>> clusters;
 	
-	public STCAlgorithm (WordSuffixTree wst) {
+	public STCAlgorithm (PhraseIndex index) {
 		//the default Kvalue is the total number of nodes
-		this(wst, wst.nodeDocumentListScores.size());
+		this(index, index.numOfNodes());
 	}
 	
-	public STCAlgorithm (WordSuffixTree wst, int Kvalue) {
+	public STCAlgorithm (PhraseIndex index, int Kvalue) {
 		this.Kvalue = Kvalue;	
-		this.wst = wst;
+		this.index = index;
 		this.clusters = new ArrayList<Set<Integer>>();
 		
 		getBaseClusters();
@@ -38,17 +38,17 @@ public class STCAlgorithm {
 	private void getBaseClusters () {
 		//Finding the top K clusters
 		List<Integer> topKClusters = new ArrayList<Integer>();
-		if (this.Kvalue == wst.nodeDocumentListScores.size()) {
+		if (this.Kvalue == this.index.numOfNodes()) {
 			for(int i = 0; i < this.Kvalue; i++)
 				topKClusters.add(i);
 		} else {
 			Map<Float, List<Integer>> clusterScores = 
 				new TreeMap<Float, List<Integer>>(Collections.reverseOrder());
-			for(int i = 0; i < this.wst.nodeDocumentListScores.size(); i++) {
-				List<Integer> ind = clusterScores.get(this.wst.nodeDocumentListScores.get(i));
+			for(int i = 0; i < this.index.numOfNodes(); i++) {
+				List<Integer> ind = clusterScores.get(this.index.getNodeScore(i));
 			    if(ind == null){
 			        ind = new ArrayList<Integer>();
-			        clusterScores.put(this.wst.nodeDocumentListScores.get(i), ind);
+			        clusterScores.put(this.index.getNodeScore(i), ind);
 			    }
 			    ind.add(i);
 			}
@@ -59,9 +59,13 @@ public class STCAlgorithm {
 		}
 
 		Set<Integer> newCluster;
+		int[] nodeDocs = new int[this.index.numOfDocs()];
+		short[] nodeCounts = new short[this.index.numOfDocs()];
 		for (int i = 0; i < this.Kvalue; i++) {
 			newCluster = new HashSet<Integer>();
-			newCluster.addAll(this.wst.nodeDocumentList.get(topKClusters.get(i)).keySet());
+			int df = this.index.getNodeDocuments(topKClusters.get(i), nodeDocs, nodeCounts);
+			for (int k = 0; k < df; k++)
+				newCluster.add(nodeDocs[k]);
 			this.clusters.add(newCluster);
 		}
 	}
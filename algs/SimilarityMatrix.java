@@ -1,183 +1,859 @@
 package com.doccluster.algs;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.StringTokenizer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
-import com.doccluster.suffixtree.WordSuffixTree;
+import com.doccluster.suffixtree.CodedCorpus;
+import com.doccluster.suffixtree.PhraseIndex;
 
 public class SimilarityMatrix {
 	private int numOfDocs;
 	private int numOfWords;
 	private String calcMethod;
 	private String similarityType;
+	private String engine;
+	private int numOfDimensions; //length of the weight vectors (nodes or words)
 	public float[][] matrix; //the array stores the similarity matrix
+	//the similarity matrix; matrix holds its rows when it is kept on the
+	//heap, and is null otherwise
+	private TriangularMatrix values;
+	//rows of the neighbor graph while it is computed, instead of values
+	private NeighborGraph.Builder neighbors;
+	//least similarity of the pairs a similarity join keeps
+	private float minSimilarity;
+	//the pairs the minHashLSH engine computes the similarities of
+	private MinHashLSH candidates;
+	//the weight vectors the entries were computed with, once documents
+	//have been added, and the staleness of each (see addDocuments)
+	private DocumentVectorStore vectors;
+	private float[] staleness;
+	
+	//pool the pairwise engine computes the tiles of the matrix on, null to
+	//compute them on the calling thread
+	private ForkJoinPool pool;
+	
+	//pairwise similarities are computed by tiles of TILE_SIZE documents
+	//(rows) by TILE_SIZE documents (columns), whose vectors stay in cache
+	private static final int TILE_SIZE = 64;
+	
+	//the euclidean and correlation kernels run on the Vector API (see
+	//VectorKernels) when the jdk.incubator.vector module is there, that is
+	//with "java --add-modules jdk.incubator.vector", unless the
+	//doccluster.scalarKernels property is true; on scalar loops otherwise.
+	//The cosine kernel always runs on a scalar loop, whose sums the
+	//invertedIndex and similarityJoin engines match
+	private static final boolean VECTOR_KERNELS = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() &&
+			!Boolean.getBoolean("doccluster.scalarKernels");
+	
+	//progress reporting: units of work done out of progressTotal, and the
+	//next percentage to report
+	private ProgressListener progressListener;
+	private long progressDone, progressTotal;
+	private int nextPercentage;
 	
 	//Constructor for the class
 	//argument "method" tells whether it is phraseBased or wordBased calculation
-	public SimilarityMatrix (WordSuffixTree wst, String method, String similarityType) {
+	//Cosine similarities are computed with the invertedIndex engine, the
+	//others pairwise
+	public SimilarityMatrix (PhraseIndex index, String method, String similarityType) {
+		this(index, method, similarityType, defaultEngine(method, similarityType));
+	}
+	
+	public static String defaultEngine (String method, String similarityType) {
+		return (method.equals("phraseBased") || similarityType.equals("cosine")) ? "invertedIndex" : "pairwise";
+	}
+	
+	public SimilarityMatrix (PhraseIndex index, String method, String similarityType, String engine) {
+		this(index, method, similarityType, engine, null, ProgressListener.CONSOLE);
+	}
+	
+	//argument "engine" tells how the similarities are computed: pairwise
+	//merges the weight vectors of every pair of documents, invertedIndex
+	//walks the documents of every node (or word) once, adding up the dot
+	//products of the pairs of documents sharing it, so pairs sharing nothing
+	//cost nothing. invertedIndex only computes cosine similarities; both
+	//give the same values, whichever kernels are in use. similarityJoin is only for the pairs above a
+	//minimum similarity (see the constructor taking minSimilarity), and
+	//minHashLSH for candidate pairs (see the one taking a MinHashLSH)
+	//argument "pool" is the pool the pairwise engine runs on, or null to run
+	//on the calling thread; the values do not depend on it. The progress of
+	//the calculation goes to "progressListener"
+	public SimilarityMatrix (PhraseIndex index, String method, String similarityType, String engine,
+			ForkJoinPool pool, ProgressListener progressListener) {
+		this(index, method, similarityType, engine, pool, progressListener,
+				new HeapTriangularMatrix(index.numOfDocs()));
+	}
+	
+	//argument "values" receives the similarities, e.g. a
+	//MappedTriangularMatrix for matrices larger than the heap, or a
+	//QuantizedTriangularMatrix to keep them in fewer bits. It must have a
+	//row per document, all set to 0
+	public SimilarityMatrix (PhraseIndex index, String method, String similarityType, String engine,
+			ForkJoinPool pool, ProgressListener progressListener, TriangularMatrix values) {
+		this(index, method, similarityType, engine, pool, progressListener, values, 0, Float.NaN, null);
+	}
+	
+	//argument "topK" is the number of most similar documents kept for each
+	//document, in a NeighborGraph (see getNeighborGraph) instead of the
+	//full matrix. The similarities are computed as with the full matrix,
+	//but only a row of them is kept at a time per thread, besides the graph
+	public SimilarityMatrix (PhraseIndex index, String method, String similarityType, String engine,
+			ForkJoinPool pool, ProgressListener progressListener, int topK) {
+		this(index, method, similarityType, engine, pool, progressListener, null, topK, Float.NaN, null);
+	}
+	
+	//The cosine similarities of the pairs of documents at least
+	//"minSimilarity" similar, found by the similarityJoin engine, in a
+	//NeighborGraph (see getNeighborGraph); the other pairs are 0 in
+	//getValues(). The join is exact: the pairs and their similarities are
+	//those of the full matrix at or above minSimilarity, which has to be
+	//above 0. The higher it is, the fewer pairs are computed at all
+	public SimilarityMatrix (PhraseIndex index, String method, ProgressListener progressListener,
+			float minSimilarity) {
+		this(index, method, "cosine", "similarityJoin", null, progressListener, null, 0, minSimilarity, null);
+	}
+	
+	//The similarities of the candidate pairs of "candidates" only,
+	//computed as in the full matrix, in a NeighborGraph (see
+	//getNeighborGraph); the other pairs are 0 in getValues(). Phrase based
+	//similarities are cosine ones, as always
+	public SimilarityMatrix (PhraseIndex index, String method, String similarityType,
+			ProgressListener progressListener, MinHashLSH candidates) {
+		this(index, method, similarityType, "minHashLSH", null, progressListener, null, 0, Float.NaN, candidates);
+	}
+	
+	private SimilarityMatrix (PhraseIndex index, String method, String similarityType, String engine,
+			ForkJoinPool pool, ProgressListener progressListener, TriangularMatrix values, int topK,
+			float minSimilarity, MinHashLSH candidates) {
 		this.calcMethod = method;
 		this.similarityType = similarityType;
-		this.numOfDocs = wst.numOfDocs;
-		this.numOfWords = wst.wordList.size();
+		this.engine = engine;
+		this.pool = pool;
+		this.progressListener = progressListener;
+		if (!engine.equals("pairwise") && !engine.equals("invertedIndex") && !engine.equals("similarityJoin") &&
+				!engine.equals("minHashLSH"))
+			throw new UnsupportedOperationException("Unknown engine: " + engine + "\n");
+		if (engine.equals("invertedIndex") && method.equals("wordBased") && !similarityType.equals("cosine"))
+			throw new UnsupportedOperationException("The invertedIndex engine only computes cosine similarities, not " +
+								similarityType + "\n");
+		this.numOfDocs = index.numOfDocs();
+		this.numOfWords = index.numOfWords();
 		
-		matrix = new float[this.numOfDocs][];
-		for (int i = 0; i < this.numOfDocs; i++)
-			matrix[i] = new float[i+1];
+		if (values == null) {
+			//a neighbor graph, of the topK most similar documents, or of the
+			//pairs a similarity join finds or of the candidate pairs, which
+			//those engines make themselves
+			if (!engine.equals("similarityJoin") && !engine.equals("minHashLSH"))
+				this.neighbors = new NeighborGraph.Builder(this.numOfDocs, topK);
+			if (candidates != null && candidates.numOfDocs() != this.numOfDocs)
+				throw new UnsupportedOperationException("Candidate pairs of " + candidates.numOfDocs() +
+									" documents for " + this.numOfDocs + " documents\n");
+			this.minSimilarity = minSimilarity;
+			this.candidates = candidates;
+			this.computeSimilarities(index);
+			if (this.neighbors != null) {
+				this.values = this.neighbors.build();
+				this.neighbors = null;
+			}
+			return;
+		}
+		
+		if (values.size() != this.numOfDocs)
+			throw new UnsupportedOperationException("Matrix of " + values.size() + " rows for " +
+								this.numOfDocs + " documents\n");
+		//byte entries only hold similarities from 0 to 1 in steps of 1/254:
+		//correlation similarities go up to 2, and euclidean ones are bunched
+		//too close together for those steps (see QuantizedTriangularMatrix)
+		if (values.getFormat().equals("byte") && method.equals("wordBased") && !similarityType.equals("cosine"))
+			throw new UnsupportedOperationException("The byte format only holds cosine similarities, " +
+								"use half or float\n");
+		this.values = values;
+		if (values instanceof HeapTriangularMatrix)
+			this.matrix = ((HeapTriangularMatrix) values).getRows();
 		
-		if (method.equals("phraseBased"))
-			this.SimilarityMatrixPhraseBased(wst);
-		else if (method.equals("wordBased"))
-			this.SimilarityMatrixWordBased(wst);
+		this.computeSimilarities(index);
+	}
+	
+	private void computeSimilarities (PhraseIndex index) {
+		this.numOfDimensions = this.calcMethod.equals("phraseBased") ? index.numOfNodes() : this.numOfWords;
+		if (this.calcMethod.equals("phraseBased"))
+			this.SimilarityMatrixPhraseBased(index);
+		else if (this.calcMethod.equals("wordBased"))
+			this.SimilarityMatrixWordBased(index);
 		else
-			throw new UnsupportedOperationException("Unknown method: " + method + "\n");
+			throw new UnsupportedOperationException("Unknown method: " + this.calcMethod + "\n");
 	}
 	
 	//Similarity matrix with phrase based calculations
-	private void SimilarityMatrixPhraseBased (WordSuffixTree wst) {	
+	private void SimilarityMatrixPhraseBased (PhraseIndex index) {	
+		if (this.engine.equals("invertedIndex") && this.matrix != null) {
+			this.invertedIndexPhraseBased(index);
+			return;
+		}
+		
 		//Calculating the weight vector for each document
-		float[][] docWts = new float[this.numOfDocs][wst.nodeDocumentList.size()];
+		DocumentVectorStore store = weightVectors(index);
+			
+		//Computing the cosine similarity measures
+		if (this.engine.equals("similarityJoin"))
+			similarityJoin(store);
+		else if (this.engine.equals("minHashLSH"))
+			candidateSimilarities(store, "cosine");
+		else if (this.engine.equals("invertedIndex"))
+			invertedIndexRows(store);
+		else
+			fillPairwise(store, "cosine");
+	}
+	
+	//The weight vectors of the first numOfDocs documents of the index over
+	//its first numOfDimensions nodes (or words), weighted with the document
+	//frequencies among those documents. The vectors are sparse: the nodes
+	//of the document in ascending order, and their weights, found by
+	//transposing the document lists of the nodes (or from the word counts
+	//of the coded documents). Once documents are added to the index, these
+	//are still the vectors the similarities were computed with, as it
+	//keeps the numbers of the nodes and documents it had
+	private DocumentVectorStore weightVectors (PhraseIndex index) {
+		int[][] docIndices = new int[this.numOfDocs][];
+		float[][] docWts = new float[this.numOfDocs][];
+		if (this.calcMethod.equals("phraseBased")) {
+			int[] nodeDocs = new int[index.numOfDocs()];
+			short[] nodeCounts = new short[index.numOfDocs()];
+			int[] vectorSizes = new int[this.numOfDocs];
+			for (int j = 0; j < this.numOfDimensions; j++) {
+				int num = index.getNodeDocuments(j, nodeDocs, nodeCounts);
+				for (int k = 0; k < num; k++)
+					if (nodeDocs[k] < this.numOfDocs)
+						vectorSizes[nodeDocs[k]]++;
+			}
+			
+			for (int i = 0; i < this.numOfDocs; i++) {
+				docIndices[i] = new int[vectorSizes[i]];
+				docWts[i] = new float[vectorSizes[i]];
+				vectorSizes[i] = 0;
+			}
+			for (int j = 0; j < this.numOfDimensions; j++) {
+				int num = index.getNodeDocuments(j, nodeDocs, nodeCounts);
+				short df = 0;
+				for (int k = 0; k < num; k++)
+					if (nodeDocs[k] < this.numOfDocs)
+						df++;
+				for (int k = 0; k < num; k++) {
+					int docId = nodeDocs[k];
+					if (docId < this.numOfDocs) {
+						docIndices[docId][vectorSizes[docId]] = j;
+						docWts[docId][vectorSizes[docId]++] = calcWeight(nodeCounts[k], df);
+					}
+				}
+			}
+		} else {
+			CodedCorpus corpus = index.getCodedCorpus();
+			short[][] docTfs = new short[this.numOfDocs][];
+			int[] docFreqs = new int[this.numOfDimensions];
+			int maxLength = 0;
+			for (int i = 0; i < this.numOfDocs; i++)
+				maxLength = Math.max(maxLength, corpus.getDocument(i).length);
+			int[] words = new int[maxLength];
+			short[] tfs = new short[maxLength];
+			for (int i = 0; i < this.numOfDocs; i++) {
+				int num = corpus.getWordCounts(i, words, tfs);
+				docIndices[i] = Arrays.copyOf(words, num);
+				docTfs[i] = Arrays.copyOf(tfs, num);
+				for (int k = 0; k < num; k++)
+					docFreqs[words[k]]++;
+			}
+			for (int i = 0; i < this.numOfDocs; i++) {
+				docWts[i] = new float[docIndices[i].length];
+				for (int k = 0; k < docIndices[i].length; k++)
+					docWts[i][k] = calcWeight(docTfs[i][k], (short) docFreqs[docIndices[i][k]]);
+			}
+		}
+		return new DocumentVectorStore(docIndices, docWts, this.numOfDimensions);
+	}
+	
+	//Cosine similarity matrix with phrase based calculations, walking the
+	//document list of each node once
+	private void invertedIndexPhraseBased (PhraseIndex index) {
+		//sumX2 adds up the squared weights of each document, and the matrix
+		//the products of weights of each pair of documents, both in node
+		//order as calcCosineSimilarity does
+		float[] sumX2 = new float[this.numOfDocs];
+		int[] nodeDocs = new int[this.numOfDocs];
+		short[] nodeCounts = new short[this.numOfDocs];
+		float[] nodeWts = new float[this.numOfDocs];
+		
+		int numOfNodes = index.numOfNodes();
+		startProgress(numOfNodes);
+		for (int j = 0; j < numOfNodes; j++) {
+			int num = index.getNodeDocuments(j, nodeDocs, nodeCounts);
+			short df = (short) num;
+			for (int k = 0; k < num; k++)
+				nodeWts[k] = calcWeight(nodeCounts[k], df);
+			addPostingProducts(nodeDocs, nodeWts, 0, num, sumX2);
+			addProgress(1);
+		}
+		finishCosineSimilarities(sumX2);
+		this.progressListener.progress(100);
+	}
+	
+	//Adds the weights of documents "docs[from]" to "docs[to - 1]", which
+	//share a node (or word), to the sums of squares of their vectors, and
+	//the product of the weights of every pair of them to the dot product of
+	//the pair, in the heap rows
+	private void addPostingProducts (int[] docs, float[] wts, int from, int to, float[] sumX2) {
+		//sorting the documents so the larger one of a pair is found first
+		int num = to - from;
+		long[] entries = new long[num];
+		for (int k = 0; k < num; k++)
+			entries[k] = ((long) docs[from + k] << 32) | (Float.floatToRawIntBits(wts[from + k]) & 0xffffffffL);
+		Arrays.sort(entries);
+		
+		for (int a = 0; a < num; a++) {
+			int docA = (int) (entries[a] >>> 32);
+			float X = Float.intBitsToFloat((int) entries[a]);
+			sumX2[docA] += (X * X);
+			float[] row = this.matrix[docA];
+			for (int b = 0; b < a; b++)
+				row[(int) (entries[b] >>> 32)] += (X * Float.intBitsToFloat((int) entries[b]));
+		}
+	}
+	
+	//Turns the dot products in the heap rows into cosine similarities
+	private void finishCosineSimilarities (float[] sumX2) {
 		for (int i = 0; i < this.numOfDocs; i++) {
-			for (int j = 0; j < wst.nodeDocumentList.size(); j++) {
-				Short tf = wst.nodeDocumentList.get(j).get(i);
-				if (tf == null)
-					docWts[i][j] = 0;
-				else {
-					short df = (short) wst.nodeDocumentList.get(j).keySet().size();
-					docWts[i][j] = calcWeight(tf, df);
+			float[] row = this.matrix[i];
+			for (int j = 0; j < i; j++) {
+				if (sumX2[i] == 0 || sumX2[j] == 0)
+					row[j] = 0;
+				else
+					row[j] = (float)(row[j]/Math.sqrt(sumX2[i] * sumX2[j]));
+			}
+			row[i] = 1;
+		}
+	}
+	
+	//Similarity matrix with word based calculations
+	private void SimilarityMatrixWordBased (PhraseIndex index) {	
+		//Calculating the weight vector for each document
+		DocumentVectorStore store = weightVectors(index);
+		
+		if (this.engine.equals("invertedIndex") && this.matrix != null) {
+			//walking the documents of each word once, as with the nodes of
+			//invertedIndexPhraseBased, from the postings of the vectors
+			Postings postings = new Postings(store);
+			float[] sumX2 = new float[this.numOfDocs];
+			startProgress(this.numOfWords);
+			for (int j = 0; j < this.numOfWords; j++) {
+				addPostingProducts(postings.docs, postings.wts, postings.starts[j], postings.starts[j + 1], sumX2);
+				addProgress(1);
+			}
+			finishCosineSimilarities(sumX2);
+			this.progressListener.progress(100);
+			return;
+		}
+		
+		//Populating the similarity matrix
+		if (this.engine.equals("similarityJoin"))
+			similarityJoin(store);
+		else if (this.engine.equals("minHashLSH"))
+			candidateSimilarities(store, this.similarityType);
+		else if (this.engine.equals("invertedIndex"))
+			invertedIndexRows(store);
+		else
+			fillPairwise(store, this.similarityType);
+	}
+	
+	//Fills the matrix with the similarity of every pair of documents, tile
+	//by tile. The tiles are listed row block by row block, and split in
+	//halves on the pool, so the threads get even shares of the triangle
+	//instead of the uneven shares of whole rows
+	private void fillPairwise (DocumentVectorStore store, String type) {
+		int numOfBlocks = (this.numOfDocs + TILE_SIZE - 1)/TILE_SIZE;
+		int numOfTiles = numOfBlocks*(numOfBlocks + 1)/2;
+		int[] tileRows = new int[numOfTiles];
+		int[] tileCols = new int[numOfTiles];
+		int k = 0;
+		for (int rowBlock = 0; rowBlock < numOfBlocks; rowBlock++) {
+			for (int colBlock = 0; colBlock <= rowBlock; colBlock++) {
+				tileRows[k] = rowBlock;
+				tileCols[k++] = colBlock;
+			}
+		}
+		
+		startProgress((long) this.numOfDocs*(this.numOfDocs + 1)/2);
+		if (this.pool != null)
+			this.pool.invoke(new TileTask(store, type, tileRows, tileCols, 0, numOfTiles, new ArrayDeque<float[]>()));
+		else {
+			float[] row = new float[store.numOfDimensions()];
+			for (k = 0; k < numOfTiles; k++)
+				fillTile(store, type, row, tileRows[k], tileCols[k]);
+		}
+		this.progressListener.progress(100);
+	}
+	
+	//Fills the entries of the rows of block "rowBlock" and the columns of
+	//block "colBlock". The vector of each row is scattered into "row", all
+	//0 before and after, for the kernels to gather from (see calcSimilarity)
+	private void fillTile (DocumentVectorStore store, String type, float[] row, int rowBlock, int colBlock) {
+		int rowStart = rowBlock*TILE_SIZE, colStart = colBlock*TILE_SIZE;
+		int rowEnd = Math.min(this.numOfDocs, (rowBlock + 1)*TILE_SIZE);
+		//the similarities of a tile of the neighbor graph are kept until
+		//the tile is done, and then offered to the rows of the graph
+		float[] tile = (this.neighbors != null) ? new float[TILE_SIZE*TILE_SIZE] : null;
+		int numOfPairs = 0;
+		for (int i = rowStart; i < rowEnd; i++) {
+			int colEnd = (rowBlock == colBlock) ? i + 1 : (colBlock + 1)*TILE_SIZE;
+			scatterRow(store, i, row, false);
+			for (int j = colStart; j < colEnd; j++) {
+				float value = (i == j) ? 1 : calcSimilarity (type, store, row, i, j);
+				if (tile != null)
+					tile[(i - rowStart)*TILE_SIZE + j - colStart] = value;
+				else
+					values.set(i, j, value);
+				numOfPairs++;
+			}
+			scatterRow(store, i, row, true);
+		}
+		if (tile != null)
+			offerTile(tile, rowStart, rowEnd, colStart, rowBlock == colBlock);
+		addProgress(numOfPairs);
+	}
+	
+	//Offers each similarity of a tile to the rows of both its documents,
+	//holding the lock of a row once per tile rather than once per pair
+	private void offerTile (float[] tile, int rowStart, int rowEnd, int colStart, boolean diagonal) {
+		int colEnd = diagonal ? rowEnd : colStart + TILE_SIZE;
+		for (int i = rowStart; i < rowEnd; i++) {
+			synchronized (this.neighbors.getLock(i)) {
+				for (int j = colStart; j < (diagonal ? i : colEnd); j++)
+					this.neighbors.offer(i, j, tile[(i - rowStart)*TILE_SIZE + j - colStart]);
+			}
+		}
+		for (int j = colStart; j < colEnd; j++) {
+			synchronized (this.neighbors.getLock(j)) {
+				for (int i = diagonal ? j + 1 : rowStart; i < rowEnd; i++)
+					this.neighbors.offer(j, i, tile[(i - rowStart)*TILE_SIZE + j - colStart]);
+			}
+		}
+	}
+	
+	//Cosine similarities of the neighbor graph, or of a matrix not on the
+	//heap, with the invertedIndex engine, a document at a time: the dot
+	//products of document i with the documents before it are added up in
+	//"dots", walking the documents of the nodes (or words) of i, and then
+	//offered to the rows of both, or written to row i of the matrix, so
+	//rounded entries are rounded once each. Only a row of dot products is
+	//kept rather than a float matrix. They are added up in node order, as
+	//addPostingProducts does, so the similarities are the same
+	private void invertedIndexRows (DocumentVectorStore store) {
+		Postings postings = new Postings(store);
+		int[] starts = postings.starts;
+		int[] postingDocs = postings.docs;
+		float[] postingWts = postings.wts;
+		
+		float[] dots = new float[this.numOfDocs];
+		int[] sharing = new int[this.numOfDocs]; //the documents with a dot product
+		boolean[] isSharing = new boolean[this.numOfDocs];
+		startProgress(this.numOfDocs);
+		for (int i = 0; i < this.numOfDocs; i++) {
+			int[] nodes = store.getIndices(i);
+			float[] wts = store.getWeights(i);
+			int numSharing = 0;
+			for (int k = 0; k < nodes.length; k++) {
+				float X = wts[k];
+				//i itself is in the list, after the documents before it
+				for (int entry = starts[nodes[k]]; postingDocs[entry] < i; entry++) {
+					int j = postingDocs[entry];
+					if (!isSharing[j]) {
+						isSharing[j] = true;
+						sharing[numSharing++] = j;
+					}
+					dots[j] += (X * postingWts[entry]);
+				}
+			}
+			float sumX2 = store.getSquaredNorm(i);
+			if (this.neighbors == null) {
+				for (int j = 0; j < i; j++) {
+					float sumY2 = store.getSquaredNorm(j);
+					values.set(i, j, (sumX2 == 0 || sumY2 == 0) ? 0 : (float)(dots[j]/Math.sqrt(sumX2 * sumY2)));
+				}
+				values.set(i, i, 1);
+			}
+			for (int s = 0; s < numSharing; s++) {
+				int j = sharing[s];
+				if (this.neighbors != null) {
+					float sumY2 = store.getSquaredNorm(j);
+					float similarity = (sumX2 == 0 || sumY2 == 0) ? 0 : (float)(dots[j]/Math.sqrt(sumX2 * sumY2));
+					this.neighbors.offer(i, j, similarity);
+					this.neighbors.offer(j, i, similarity);
 				}
+				dots[j] = 0;
+				isSharing[j] = false;
 			}
+			addProgress(1);
 		}
-			
-	    int percentageDone = 0;
-		System.out.print("%Done: " + percentageDone + "..");
-		percentageDone += 10;
+		if (this.neighbors == null) {
+			this.progressListener.progress(100);
+			return;
+		}
+		//the weights are positive, so a row that is not full has every
+		//document sharing a node with its own, and the others are 0 similar;
+		//it is topped up with them, lowest numbered first, as the full
+		//matrix ranks them
+		for (int i = 0; i < this.numOfDocs; i++)
+			this.neighbors.topUp(i, 0);
+		this.progressListener.progress(100);
+	}
+	
+	//The documents of each node (or word) of the vectors of a store in
+	//ascending order, and their weights: those of node j at
+	//docs[starts[j]] to docs[starts[j + 1] - 1]
+	private static class Postings {
+		private int[] starts;
+		private int[] docs;
+		private float[] wts;
 		
-		//Computing the cosine similarity measures
-		for (int i = 0; i < this.numOfDocs; i++) {			
-			for (int j = 0; j <= i; j++) {
-				if (i == j)
-					matrix[i][j] = 1;
-				else {								
-					float cosSim = calcCosineSimilarity (docWts[i], docWts[j]);
-					matrix[i][j] = cosSim;
+		Postings (DocumentVectorStore store) {
+			int numOfNodes = store.numOfDimensions();
+			this.starts = new int[numOfNodes + 1];
+			for (int i = 0; i < store.numOfDocs(); i++) {
+				int[] nodes = store.getIndices(i);
+				for (int k = 0; k < nodes.length; k++)
+					this.starts[nodes[k] + 1]++;
+			}
+			for (int j = 0; j < numOfNodes; j++)
+				this.starts[j + 1] += this.starts[j];
+			this.docs = new int[this.starts[numOfNodes]];
+			this.wts = new float[this.docs.length];
+			int[] nextEntry = Arrays.copyOf(this.starts, numOfNodes);
+			for (int i = 0; i < store.numOfDocs(); i++) {
+				int[] nodes = store.getIndices(i);
+				float[] wts = store.getWeights(i);
+				for (int k = 0; k < nodes.length; k++) {
+					int entry = nextEntry[nodes[k]]++;
+					this.docs[entry] = i;
+					this.wts[entry] = wts[k];
 				}
 			}
-			
-			if (percentageDone <= (int)Math.pow(10.0 * i/this.numOfDocs, 2)) {
-				System.out.print(percentageDone + "..");
-				percentageDone += 10;
+		}
+	}
+	
+	//Fills the tiles from "from" to "to" - 1, splitting them in halves down
+	//to a few tiles per task
+	private class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private DocumentVectorStore store;
+		private String type;
+		private int[] tileRows, tileCols;
+		private int from, to;
+		//the dense rows of fillTile not in use, passed on from task to
+		//task, so there are about as many as threads
+		private ArrayDeque<float[]> rows;
+		
+		TileTask (DocumentVectorStore store, String type, int[] tileRows, int[] tileCols, int from, int to,
+				ArrayDeque<float[]> rows) {
+			this.store = store;
+			this.type = type;
+			this.tileRows = tileRows;
+			this.tileCols = tileCols;
+			this.from = from;
+			this.to = to;
+			this.rows = rows;
+		}
+		
+		protected void compute () {
+			if (this.to - this.from <= 4) {
+				float[] row;
+				synchronized (this.rows) {
+					row = this.rows.poll();
+				}
+				if (row == null)
+					row = new float[this.store.numOfDimensions()];
+				for (int k = this.from; k < this.to; k++)
+					fillTile(this.store, this.type, row, this.tileRows[k], this.tileCols[k]);
+				synchronized (this.rows) {
+					this.rows.push(row);
+				}
+				return;
 			}
-		}		
-		System.out.println("100");
+			int mid = (this.from + this.to) >>> 1;
+			invokeAll(new TileTask(this.store, this.type, this.tileRows, this.tileCols, this.from, mid, this.rows),
+					new TileTask(this.store, this.type, this.tileRows, this.tileCols, mid, this.to, this.rows));
+		}
 	}
 	
-	//Similarity matrix with word based calculations
-	private void SimilarityMatrixWordBased (WordSuffixTree wst) {	
-		//wordFreqList stores the word frequency in each documents
-		List<Map<Integer, Short>> wordFreqList = new ArrayList<Map<Integer, Short>>();
-		for (int i = 0; i < this.numOfDocs; i++)
-			wordFreqList.add(new HashMap<Integer, Short>());
+	//Cosine similarities of the pairs of documents at least minSimilarity
+	//similar, by prefix filtering (Bayardo et al., "Scaling up all pairs
+	//similarity search"). On the vectors scaled to unit length:
+	//  - the documents are taken in decreasing order of their largest
+	//    weight, maxWt(d), and each is matched against the earlier ones
+	//  - the nodes (or words) are ranked from the most common, and of each
+	//    vector only the suffix past the point where the bound of its dot
+	//    product with a later vector reaches minSimilarity is indexed. The
+	//    bound is the smaller of the sum of w(d, r)*min(maxRankWt(r),
+	//    maxWt(d)) over its nodes of rank r, with maxRankWt(r) the largest
+	//    weight of node r, as a later document has no larger weights, and
+	//    the norm of the prefix, as the later vector has norm 1. The prefix
+	//    left out cannot make a similar pair on its own, so a similar pair
+	//    shares an indexed node
+	//  - a pair is dropped when the largest weight of either vector times
+	//    the sum of the weights of the other, or the bound of the prefix of
+	//    the earlier one plus the norm of the rest of the later one from
+	//    the first indexed node they share, falls short of minSimilarity; and then
+	//    when the dot product over the indexed nodes plus a bound of the
+	//    dot product with the prefix does: the bound of the prefix, the
+	//    largest weight of the later vector times the sum of the prefix, or
+	//    the norm of the prefix times the norm of the entries of the later
+	//    vector ranked before the indexed suffix
+	//The pairs left are computed by calcCosineSimilarity, and kept if at
+	//least minSimilarity, so the join is exact. The bounds are in double,
+	//and lowered by the rounding of the float similarities, so no pair is
+	//dropped by it
+	private void similarityJoin (DocumentVectorStore store) {
+		if (!(this.minSimilarity > 0))
+			throw new UnsupportedOperationException("The similarity join needs a minimum similarity above 0, not " +
+								this.minSimilarity + "\n");
+		int numOfNodes = store.numOfDimensions();
 		
-		//docFreqList has the document frequency of each word
-		//for later calculations
-		List<Set<Integer>> docFreqList = new ArrayList<Set<Integer>>();
-		for (int i = 0; i < this.numOfWords; i++)
-			docFreqList.add(new HashSet<Integer>());
-				
-		File inputFolder = new File(wst.inputFolderLocation);
-	    File[] listOfFolders = inputFolder.listFiles();
-	    
-	    int docId = 0;
-	    for (int i = 0; i < listOfFolders.length; i++) {
-		    File inputFolder2 = new File(listOfFolders[i].getPath());
-		    File[] listOfFiles = inputFolder2.listFiles();
-		    
-		    for (int j = 0; j < listOfFiles.length; j++) {	    	
-		      	FileInputStream fstream = null;
-		      	DataInputStream  inStream = null;
-		        BufferedReader br = null;
-		        
-		        String fileData = "";
-				try {
-		      		// Open the file that is the first 
-		      		// command line parameter
-		      		fstream = new FileInputStream(listOfFiles[j]);
-		      		
-		            // Get the object of DataInputStream
-		        	inStream = new DataInputStream(fstream);
-		            br = new BufferedReader(new InputStreamReader(inStream));
-		        
-		            String strLine;
-		        	//Read File Line By Line
-		        	while ((strLine = br.readLine()) != null)   {
-		          		// Print the content on the console
-		        		fileData = fileData + " " + strLine.trim();
-		        	}
-		        	fileData = fileData.trim();
-		        	
-		    	    //Close the input stream
-		    	    inStream.close();
-		    	    
-		        } catch (Exception e) { //Catch exception if any
-		          System.err.println("Error: " + e.getMessage());
-		        }
-		                
-		        StringTokenizer wordCodeTokenizer = new StringTokenizer(fileData);
-			    while (wordCodeTokenizer.hasMoreTokens()) {
-			    	int nextWordCode = Integer.parseInt(wordCodeTokenizer.nextToken());
-			    	
-			    	Short value = wordFreqList.get(docId).get(nextWordCode);
-			    	value = (short) ((value == null) ? 1 : (value + 1));
-			    	wordFreqList.get(docId).put(nextWordCode, value);
-			    	
-			    	docFreqList.get(nextWordCode).add(docId);
-			    }
-			    
-			    docId++;
-		    }
-	    }
-	    
-	    //Calculating the weight vectors for each document
-	    float[][] docWts = new float[this.numOfDocs][this.numOfWords];
+		//ranking the nodes from the most common, ties by index
+		int[] nodeFreqs = new int[numOfNodes];
+		int maxLength = 0;
 		for (int i = 0; i < this.numOfDocs; i++) {
-			for (int j = 0; j < this.numOfWords; j++)
-				docWts[i][j] = 0;
-				
-			for (Map.Entry<Integer, Short> entry : wordFreqList.get(i).entrySet()){
-					int wordId = entry.getKey();
-					Short tf = entry.getValue();
-					Short df = (short) docFreqList.get(wordId).size();
-					docWts[i][wordId] = calcWeight(tf, df);
-			}				
+			int[] nodes = store.getIndices(i);
+			for (int k = 0; k < nodes.length; k++)
+				nodeFreqs[nodes[k]]++;
+			maxLength = Math.max(maxLength, nodes.length);
 		}
-				
-	    int percentageDone = 0;
-		System.out.print("%Done: " + percentageDone + "..");
-		percentageDone += 10;
+		long[] keys = new long[Math.max(numOfNodes, maxLength)];
+		for (int j = 0; j < numOfNodes; j++)
+			keys[j] = ((long) (this.numOfDocs - nodeFreqs[j]) << 32) | j;
+		Arrays.sort(keys, 0, numOfNodes);
+		int[] nodeRanks = new int[numOfNodes];
+		for (int r = 0; r < numOfNodes; r++)
+			nodeRanks[(int) keys[r]] = r;
 		
-		//Populating the similarity matrix
-		for (int i = 0; i < this.numOfDocs; i++) {			
-			for (int j = 0; j <= i; j++) {
-				matrix[i][j] = (i == j) ? 1 : calcSimilarity (docWts[i], docWts[j]);
+		//the unit vectors, with their entries in rank order, the largest
+		//weight of each, rounded up to a float to order the documents by,
+		//and the sum of the weights of each. Documents with no weights are
+		//similar to none, and are left out
+		int[][] docRanks = new int[this.numOfDocs][];
+		double[][] unitWts = new double[this.numOfDocs][];
+		float[] maxWts = new float[this.numOfDocs];
+		double[] sumWts = new double[this.numOfDocs];
+		double[] maxRankWts = new double[numOfNodes];
+		int numOfJoinedDocs = 0;
+		for (int i = 0; i < this.numOfDocs; i++) {
+			int[] nodes = store.getIndices(i);
+			float[] wts = store.getWeights(i);
+			if (store.getSquaredNorm(i) == 0)
+				continue;
+			numOfJoinedDocs++;
+			double norm = Math.sqrt(store.getSquaredNorm(i));
+			for (int k = 0; k < nodes.length; k++)
+				keys[k] = ((long) nodeRanks[nodes[k]] << 32) | k;
+			Arrays.sort(keys, 0, nodes.length);
+			docRanks[i] = new int[nodes.length];
+			unitWts[i] = new double[nodes.length];
+			double maxWt = 0;
+			for (int k = 0; k < nodes.length; k++) {
+				int rank = (int) (keys[k] >>> 32);
+				double wt = wts[(int) keys[k]]/norm;
+				docRanks[i][k] = rank;
+				unitWts[i][k] = wt;
+				maxWt = Math.max(maxWt, wt);
+				sumWts[i] += wt;
+				maxRankWts[rank] = Math.max(maxRankWts[rank], wt);
 			}
+			maxWts[i] = Math.nextUp((float) maxWt);
+		}
+		
+		//the similarities calcCosineSimilarity computes are within
+		//(m + 8)*2^-24 of the cosine of the float weights, m the length of
+		//the shorter vector: a rounding for each product added up, and a few
+		//for the norms. The bounds are lowered by twice that
+		double threshold = this.minSimilarity - (2.0*maxLength + 16)/(1 << 24) - 1e-12;
+		
+		//the indexed suffix and the bound of the prefix of each vector
+		int[] prefixLengths = new int[this.numOfDocs];
+		double[] prefixBounds = new double[this.numOfDocs];
+		double[] prefixSums = new double[this.numOfDocs];
+		double[] prefixNorms = new double[this.numOfDocs];
+		int[] suffixRanks = new int[this.numOfDocs]; //rank of the first indexed node
+		int[] postingStarts = new int[numOfNodes + 1];
+		for (int i = 0; i < this.numOfDocs; i++) {
+			if (docRanks[i] == null)
+				continue;
+			double bound = 0, sum = 0, squaredNorm = 0;
+			int k = 0;
+			for (; k < docRanks[i].length; k++) {
+				double wt = unitWts[i][k];
+				double nextBound = bound + wt*Math.min(maxRankWts[docRanks[i][k]], maxWts[i]);
+				if (Math.min(nextBound, Math.sqrt(squaredNorm + wt*wt)) >= threshold)
+					break;
+				bound = nextBound;
+				sum += wt;
+				squaredNorm += wt*wt;
+			}
+			prefixLengths[i] = k;
+			prefixSums[i] = sum;
+			prefixNorms[i] = Math.sqrt(squaredNorm);
+			prefixBounds[i] = Math.min(bound, prefixNorms[i]);
+			suffixRanks[i] = (k < docRanks[i].length) ? docRanks[i][k] : numOfNodes;
+			for (; k < docRanks[i].length; k++)
+				postingStarts[docRanks[i][k] + 1]++;
+		}
+		for (int r = 0; r < numOfNodes; r++)
+			postingStarts[r + 1] += postingStarts[r];
+		//the documents indexed so far under the node of rank r are
+		//postingDocs[postingStarts[r]] to postingDocs[postingEnds[r] - 1]
+		int[] postingDocs = new int[postingStarts[numOfNodes]];
+		double[] postingWts = new double[postingDocs.length];
+		int[] postingEnds = Arrays.copyOf(postingStarts, numOfNodes);
+		
+		//the documents from the largest weight, ties by number
+		long[] docKeys = new long[numOfJoinedDocs];
+		int numOfKeys = 0;
+		for (int i = 0; i < this.numOfDocs; i++)
+			if (docRanks[i] != null)
+				docKeys[numOfKeys++] = ((long) ~Float.floatToIntBits(maxWts[i]) << 32) | i;
+		Arrays.sort(docKeys);
+		
+		//state of each earlier document met in the postings of the current
+		//one: CANDIDATE, or PRUNED by the bounds of the sums
+		final byte CANDIDATE = 1, PRUNED = 2;
+		byte[] states = new byte[this.numOfDocs];
+		double[] dots = new double[this.numOfDocs];
+		int[] metDocs = new int[this.numOfDocs];
+		double[] restNorms = new double[maxLength]; //norm of the entries from k on
+		double[] headNorms = new double[maxLength + 1]; //norm of the entries before k
+		int[] pairDocs1 = new int[16], pairDocs2 = new int[16];
+		float[] pairSims = new float[16];
+		int numOfPairs = 0;
+		startProgress(numOfJoinedDocs);
+		for (int p = 0; p < numOfJoinedDocs; p++) {
+			int i = (int) docKeys[p];
+			int[] ranks = docRanks[i];
+			double[] wts = unitWts[i];
+			
+			double squaredNorm = 0;
+			for (int k = ranks.length - 1; k >= 0; k--) {
+				squaredNorm += wts[k]*wts[k];
+				restNorms[k] = Math.sqrt(squaredNorm);
+			}
+			squaredNorm = 0;
+			for (int k = 0; k < ranks.length; k++) {
+				headNorms[k] = Math.sqrt(squaredNorm);
+				squaredNorm += wts[k]*wts[k];
+			}
+			headNorms[ranks.length] = Math.sqrt(squaredNorm);
 			
-			if (percentageDone <= (int)Math.pow(10.0 * i/this.numOfDocs, 2)) {
-				System.out.print(percentageDone + "..");
-				percentageDone += 10;
+			int numMet = 0;
+			for (int k = 0; k < ranks.length; k++) {
+				int r = ranks[k];
+				for (int e = postingStarts[r]; e < postingEnds[r]; e++) {
+					int j = postingDocs[e];
+					if (states[j] == 0) {
+						metDocs[numMet++] = j;
+						states[j] = (maxWts[i]*sumWts[j] < threshold || maxWts[j]*sumWts[i] < threshold ||
+								prefixBounds[j] + restNorms[k] < threshold) ? PRUNED : CANDIDATE;
+					}
+					if (states[j] == CANDIDATE)
+						dots[j] += wts[k]*postingWts[e];
+				}
 			}
-		}		
-		System.out.println("100");
+			for (int m = 0; m < numMet; m++) {
+				int j = metDocs[m];
+				if (states[j] == CANDIDATE && dots[j] + Math.min(prefixBounds[j], Math.min(maxWts[i]*prefixSums[j],
+						prefixNorms[j]*headNorms[rankPosition(ranks, suffixRanks[j])])) >= threshold) {
+					float similarity = calcCosineSimilarity(store, i, j);
+					if (similarity >= this.minSimilarity) {
+						if (numOfPairs == pairSims.length) {
+							pairDocs1 = Arrays.copyOf(pairDocs1, 2*numOfPairs);
+							pairDocs2 = Arrays.copyOf(pairDocs2, 2*numOfPairs);
+							pairSims = Arrays.copyOf(pairSims, 2*numOfPairs);
+						}
+						pairDocs1[numOfPairs] = i;
+						pairDocs2[numOfPairs] = j;
+						pairSims[numOfPairs++] = similarity;
+					}
+				}
+				states[j] = 0;
+				dots[j] = 0;
+			}
+			
+			//indexing the suffix of the vector for the documents to come
+			for (int k = prefixLengths[i]; k < ranks.length; k++) {
+				int e = postingEnds[ranks[k]]++;
+				postingDocs[e] = i;
+				postingWts[e] = wts[k];
+			}
+			addProgress(1);
+		}
+		this.values = NeighborGraph.fromPairs(this.numOfDocs, pairDocs1, pairDocs2, pairSims, numOfPairs,
+							this.minSimilarity);
+		this.progressListener.progress(100);
+	}
+	
+	//Similarities of the candidate pairs of the minHashLSH engine
+	private void candidateSimilarities (DocumentVectorStore store, String type) {
+		if (this.candidates == null)
+			throw new UnsupportedOperationException("The minHashLSH engine needs candidate pairs\n");
+		long[] pairs = this.candidates.getCandidatePairs();
+		int[] pairDocs1 = new int[pairs.length], pairDocs2 = new int[pairs.length];
+		float[] pairSims = new float[pairs.length];
+		//the pairs come by their larger document, which is scattered into
+		//the row once for them all, as the row of the tile is in fillTile
+		float[] row = new float[store.numOfDimensions()];
+		startProgress(pairs.length);
+		for (int p = 0; p < pairs.length; p++) {
+			pairDocs1[p] = (int) (pairs[p] >>> 32);
+			pairDocs2[p] = (int) pairs[p];
+			if (p == 0 || pairDocs1[p] != pairDocs1[p - 1]) {
+				if (p > 0)
+					scatterRow(store, pairDocs1[p - 1], row, true);
+				scatterRow(store, pairDocs1[p], row, false);
+			}
+			pairSims[p] = calcSimilarity(type, store, row, pairDocs1[p], pairDocs2[p]);
+			if ((p & 1023) == 1023)
+				addProgress(1024);
+		}
+		this.values = NeighborGraph.fromPairs(this.numOfDocs, pairDocs1, pairDocs2, pairSims, pairs.length,
+							Float.NEGATIVE_INFINITY);
+		this.progressListener.progress(100);
+	}
+	
+	//Number of the ascending "ranks" below "rank"
+	private static int rankPosition (int[] ranks, int rank) {
+		int position = Arrays.binarySearch(ranks, rank);
+		return (position >= 0) ? position : -position - 1;
+	}
+	
+	private synchronized void startProgress (long total) {
+		this.progressDone = 0;
+		this.progressTotal = Math.max(1, total);
+		this.nextPercentage = 10;
+		this.progressListener.progress(0);
+	}
+	
+	//Adds "units" to the work done, reporting every 10% reached
+	private synchronized void addProgress (long units) {
+		this.progressDone += units;
+		while (this.nextPercentage < 100 && 100*this.progressDone >= this.nextPercentage*this.progressTotal) {
+			this.progressListener.progress(this.nextPercentage);
+			this.nextPercentage += 10;
+		}
 	}
 	
 	//tf-idf method for calculating the weights
@@ -187,69 +863,310 @@ public class SimilarityMatrix {
 	}
 	
 	//Similarity Calculations
-	private float calcSimilarity (float[] d1, float[] d2) {		
-		if (this.similarityType.equals("cosine"))
-			return calcCosineSimilarity (d1, d2);
-		else if (this.similarityType.equals("euclidean"))
-			return calcEuclideanSimilarity (d1, d2);
-		else if (this.similarityType.equals("correlation"))
-			return calcCorrelationSimilarity (d1, d2);
+	//The vector of document "d1" is scattered into "row", a dense vector of
+	//numOfDimensions entries (see scatterRow), and the kernels gather the
+	//entries of the row at the indices of the sparse vector of "d2" instead
+	//of merging the indices of both; the norms and sums of the vectors come
+	//from the store. The cosine kernel adds up the entries in the index
+	//order of d2, so cosine similarities come out the same as with dense
+	//vectors, with the merge of the similarity join and with the
+	//invertedIndex engine. The Vector API euclidean and correlation
+	//kernels (see VECTOR_KERNELS) add them up lane by lane, the same as the
+	//scalar ones to rounding
+	private float calcSimilarity (String type, DocumentVectorStore store, float[] row, int d1, int d2) {		
+		if (type.equals("cosine"))
+			return calcCosineSimilarity (store, row, d1, d2);
+		else if (type.equals("euclidean"))
+			return calcEuclideanSimilarity (store, row, d1, d2);
+		else if (type.equals("correlation"))
+			return calcCorrelationSimilarity (store, row, d1, d2);
 		else
 			throw new UnsupportedOperationException("Unknown similarity type: " + 
-								this.similarityType + "\n");
+								type + "\n");
 	}
 	
-	//cosine similarity calculations
-	private float calcCosineSimilarity (float[] d1, float[] d2) {
-		float X, Y, sumXY = 0, sumX2 = 0, sumY2 = 0;
-		
-		for (int i = 0; i < d1.length; i++) {
-			X = d1[i];
-			Y = d2[i];
-			sumXY += (X * Y);
-			sumX2 += (X * X);
-			sumY2 += (Y * Y);
+	//Writes the entries of the vector of "doc" into "row" at their indices,
+	//or sets them back to 0 when "clear" is true
+	private static void scatterRow (DocumentVectorStore store, int doc, float[] row, boolean clear) {
+		int[] indices = store.getIndices(doc);
+		float[] wts = store.getWeights(doc);
+		for (int k = 0; k < indices.length; k++)
+			row[indices[k]] = clear ? 0 : wts[k];
+	}
+	
+	//Adds up the products of the entries at the indices in both vectors.
+	//Both vectors step on as a plain comparison rather than a branch, as
+	//which one steps on is a coin toss the processor mispredicts
+	private float dotProduct (int[] i1, float[] w1, int[] i2, float[] w2) {
+		float sumXY = 0;
+		int a = 0, b = 0;
+		while (a < i1.length && b < i2.length) {
+			int x = i1[a], y = i2[b];
+			if (x == y)
+				sumXY += (w1[a] * w2[b]);
+			a += (x <= y) ? 1 : 0;
+			b += (x >= y) ? 1 : 0;
 		}
-
+		return sumXY;
+	}
+	
+	//Adds up the products of the entries of a sparse vector with those of
+	//the row at its indices, 0 where the vector of the row has none
+	private static float dotProduct (float[] row, int[] indices, float[] wts) {
+		float sumXY = 0;
+		for (int k = 0; k < indices.length; k++)
+			sumXY += (row[indices[k]] * wts[k]);
+		return sumXY;
+	}
+	
+	//cosine similarity calculations, for the pairs of the similarity join
+	private float calcCosineSimilarity (DocumentVectorStore store, int d1, int d2) {
+		float sumX2 = store.getSquaredNorm(d1);
+		float sumY2 = store.getSquaredNorm(d2);
 		if (sumX2 == 0 || sumY2 == 0)
 			return 0;
-		else
-			return (float)(sumXY/Math.sqrt(sumX2 * sumY2));
+		
+		float sumXY = dotProduct(store.getIndices(d1), store.getWeights(d1),
+					store.getIndices(d2), store.getWeights(d2));
+		return (float)(sumXY/Math.sqrt(sumX2 * sumY2));
 	}
 	
-	//Euclidean similarity calculations
-	private float calcEuclideanSimilarity (float[] d1, float[] d2) {
-		float sum = 0;
+	//cosine similarity calculations, with the vector of d1 in the row
+	private float calcCosineSimilarity (DocumentVectorStore store, float[] row, int d1, int d2) {
+		float sumX2 = store.getSquaredNorm(d1);
+		float sumY2 = store.getSquaredNorm(d2);
+		if (sumX2 == 0 || sumY2 == 0)
+			return 0;
 		
-		for (int i = 0; i < d1.length; i++) 
-			sum = sum + (d1[i] - d2[i])*(d1[i] - d2[i]);
-
+		int[] indices = store.getIndices(d2);
+		float[] wts = store.getWeights(d2);
+		float sumXY = dotProduct(row, indices, wts);
+		return (float)(sumXY/Math.sqrt(sumX2 * sumY2));
+	}
+	
+	//Euclidean similarity calculations
+	//Not computed from the norms as sumX2 + sumY2 - 2*sumXY, which would
+	//lose the distance of close vectors to cancellation. The squared
+	//differences are added up over the entries of d2, and the squares of
+	//the entries of d1 that d2 does not have are what is left of sumX2 past
+	//those it has, all in double. None are left when d2 has every entry of
+	//d1, and otherwise the smallest of them is far above the cancellation
+	//of the double sums
+	private float calcEuclideanSimilarity (DocumentVectorStore store, float[] row, int d1, int d2) {
+		int rowLength = store.getIndices(d1).length;
+		double sumX2 = store.getExactSquaredNorm(d1);
+		int[] indices = store.getIndices(d2);
+		float[] wts = store.getWeights(d2);
+		double sum = VECTOR_KERNELS ? VectorKernels.squaredDistance(row, rowLength, sumX2, indices, wts) :
+				squaredDistance(row, rowLength, sumX2, indices, wts);
 		return (float)(1/(1 + Math.sqrt(sum)));
 	}
 	
+	//Squared distance of a sparse vector from the vector in the row, which
+	//has "rowLength" entries, whose squares add up to "rowSquaredNorm". The
+	//weights are positive, so the entries of the row that are not 0 are
+	//those of its vector
+	private static double squaredDistance (float[] row, int rowLength, double rowSquaredNorm, int[] indices,
+			float[] wts) {
+		double X, Y, sumDiff2 = 0, sharedX2 = 0;
+		int numShared = 0;
+		for (int k = 0; k < indices.length; k++) {
+			X = row[indices[k]];
+			Y = wts[k];
+			sumDiff2 += (X - Y)*(X - Y);
+			sharedX2 += X*X;
+			numShared += (X != 0) ? 1 : 0;
+		}
+		return sumDiff2 + ((numShared == rowLength) ? 0 : Math.max(0, rowSquaredNorm - sharedX2));
+	}
+	
 	//Correlation similarity calculations
-	private float calcCorrelationSimilarity (float[] d1, float[] d2) {
-		float X, Y, sumX = 0, sumY = 0, meanX, meanY, sumXY = 0, sumX2 = 0, sumY2 = 0;
+	//Centered in a single pass: the centered entries of d1 add up to 0
+	//over all numOfDimensions entries, so
+	//sum((X - meanX)*(Y - meanY)) = sum((X - meanX)*Y)
+	//which only has terms at the entries of d2. They are added up in double,
+	//as the centered sums of squares of the store are
+	private float calcCorrelationSimilarity (DocumentVectorStore store, float[] row, int d1, int d2) {
+		double varX = store.getCenteredSquaredNorm(d1);
+		double varY = store.getCenteredSquaredNorm(d2);
+		if (varX <= 0 || varY <= 0)
+			return Float.NaN;
 		
-		for (int i = 0; i < d1.length; i++) {
-			sumX += d1[i];
-			sumY += d2[i];
-		}
-		meanX = sumX/d1.length;
-		meanY = sumY/d2.length;
+		double meanX = store.getSum(d1)/store.numOfDimensions();
+		int[] indices = store.getIndices(d2);
+		float[] wts = store.getWeights(d2);
+		double covXY = VECTOR_KERNELS ? VectorKernels.centeredDotProduct(row, meanX, indices, wts) :
+				centeredDotProduct(row, meanX, indices, wts);
+		return (float)(1 - covXY/Math.sqrt(varX*varY));
+	}
+	
+	//Adds up the products of the entries of a sparse vector with those of
+	//the row at its indices, less "meanX"
+	private static double centeredDotProduct (float[] row, double meanX, int[] indices, float[] wts) {
+		double covXY = 0;
+		for (int k = 0; k < indices.length; k++)
+			covXY += (row[indices[k]] - meanX)*wts[k];
+		return covXY;
+	}
+	
+	//Whether the euclidean and correlation kernels run on the Vector API
+	//(see VECTOR_KERNELS)
+	public static boolean usesVectorKernels () {
+		return VECTOR_KERNELS;
+	}
+	
+	//The similarity matrix, wherever it is kept; the neighbor graph when
+	//only the most similar documents are kept
+	public TriangularMatrix getValues () {
+		return this.values;
+	}
+	
+	//The neighbor graph, or null when the full matrix is kept
+	public NeighborGraph getNeighborGraph () {
+		return (this.values instanceof NeighborGraph) ? (NeighborGraph) this.values : null;
+	}
+	
+	//Brings the matrix up to date with documents added to the index it was
+	//computed from (see WordSuffixTree.addDocuments, which a tree whose
+	//nodes were compacted does not take), instead of computing it again:
+	//the rows of the new documents are computed, and those of the other
+	//documents kept unless their weights moved too far.
+	//The weights of the other documents do move, as the idf of calcWeight
+	//depends on the number of documents and on the document frequencies,
+	//and their vectors gain the nodes they now share with new documents.
+	//The entries are the cosine similarities of the vectors the matrix was
+	//computed with, and getStaleness(doc) is the distance of those of each
+	//document from its current one, both scaled to length 1. The rows of
+	//the documents more than "tolerance" stale are computed again, with
+	//their current vectors, so each entry (i, j) is within
+	//getStaleness(i, j) of the current similarity. A tolerance of 0
+	//recomputes every row whose vector changed direction, and a negative
+	//one every row, as a new matrix would.
+	//Only for cosine similarity matrices on the heap; getValues() and
+	//matrix are the grown matrix after the call. Returns the documents
+	//whose rows were computed, in ascending order
+	public int[] addDocuments (PhraseIndex index, float tolerance) {
+		if (this.matrix == null || (this.calcMethod.equals("wordBased") && !this.similarityType.equals("cosine")))
+			throw new UnsupportedOperationException("Documents can only be added to a cosine similarity matrix " +
+								"on the heap\n");
+		int numOfOldDocs = this.numOfDocs;
+		int numOfDimensions = this.calcMethod.equals("phraseBased") ? index.numOfNodes() : index.numOfWords();
+		if (index.numOfDocs() < numOfOldDocs || numOfDimensions < this.numOfDimensions)
+			throw new UnsupportedOperationException("An index of " + index.numOfDocs() + " documents is not " +
+								"the index of a matrix of " + numOfOldDocs + " documents\n");
+		//the vectors of the matrix, found in the index the first time
+		if (this.vectors == null)
+			this.vectors = weightVectors(index);
+		DocumentVectorStore previous = this.vectors;
+		this.numOfDocs = index.numOfDocs();
+		this.numOfWords = index.numOfWords();
+		this.numOfDimensions = numOfDimensions;
+		DocumentVectorStore current = weightVectors(index);
 		
-		for (int i = 0; i < d1.length; i++) {
-			X = d1[i];
-			Y = d2[i];       
-			sumXY += (X - meanX)*(Y - meanY);
-			sumX2 += (X - meanX)*(X - meanX);
-			sumY2 += (Y - meanY)*(Y - meanY);
+		int[][] docIndices = new int[this.numOfDocs][];
+		float[][] docWts = new float[this.numOfDocs][];
+		this.staleness = new float[this.numOfDocs];
+		int[] computed = new int[this.numOfDocs];
+		int numComputed = 0;
+		for (int i = 0; i < this.numOfDocs; i++) {
+			float distance = (i < numOfOldDocs) ? unitDistance(previous, current, i) : 0;
+			if (i >= numOfOldDocs || tolerance < 0 || distance > tolerance) {
+				docIndices[i] = current.getIndices(i);
+				docWts[i] = current.getWeights(i);
+				computed[numComputed++] = i;
+			} else {
+				docIndices[i] = previous.getIndices(i);
+				docWts[i] = previous.getWeights(i);
+				this.staleness[i] = distance;
+			}
 		}
+		this.vectors = new DocumentVectorStore(docIndices, docWts, this.numOfDimensions);
 		
+		float[][] rows = Arrays.copyOf(this.matrix, this.numOfDocs);
+		for (int i = numOfOldDocs; i < this.numOfDocs; i++)
+			rows[i] = new float[i + 1];
+		this.matrix = rows;
+		this.values = new HeapTriangularMatrix(rows);
+		computeRows(computed, numComputed);
+		return Arrays.copyOf(computed, numComputed);
+	}
+	
+	//Computes the entries of documents "docs[0]" to "docs[num - 1]" with
+	//every document from the vectors, walking the documents of the nodes of
+	//each as invertedIndexRows does: the dot products are added up in
+	//node order, so the similarities are those of a new matrix
+	private void computeRows (int[] docs, int num) {
+		Postings postings = new Postings(this.vectors);
+		float[] dots = new float[this.numOfDocs];
+		boolean[] isSharing = new boolean[this.numOfDocs];
+		startProgress(num);
+		for (int d = 0; d < num; d++) {
+			int i = docs[d];
+			int[] nodes = this.vectors.getIndices(i);
+			float[] wts = this.vectors.getWeights(i);
+			for (int k = 0; k < nodes.length; k++) {
+				float X = wts[k];
+				for (int entry = postings.starts[nodes[k]]; entry < postings.starts[nodes[k] + 1]; entry++) {
+					int j = postings.docs[entry];
+					isSharing[j] = true;
+					dots[j] += (X * postings.wts[entry]);
+				}
+			}
+			float sumX2 = this.vectors.getSquaredNorm(i);
+			for (int j = 0; j < this.numOfDocs; j++) {
+				float sumY2 = this.vectors.getSquaredNorm(j);
+				if (!isSharing[j] || sumX2 == 0 || sumY2 == 0)
+					this.values.set(i, j, 0);
+				else
+					this.values.set(i, j, (float)(dots[j]/Math.sqrt(sumX2 * sumY2)));
+				dots[j] = 0;
+				isSharing[j] = false;
+			}
+			this.values.set(i, i, 1);
+			addProgress(1);
+		}
+		this.progressListener.progress(100);
+	}
+	
+	//Distance between the vectors of "doc" in "store1" and "store2", both
+	//scaled to length 1, added up in double. 1 when only one is 0, as the
+	//similarities of a zero vector are 0
+	private static float unitDistance (DocumentVectorStore store1, DocumentVectorStore store2, int doc) {
+		float sumX2 = store1.getSquaredNorm(doc), sumY2 = store2.getSquaredNorm(doc);
 		if (sumX2 == 0 || sumY2 == 0)
-			return Float.NaN;
-		else 
-			return (float)(1 - sumXY/Math.sqrt(sumX2*sumY2));
+			return (sumX2 == sumY2) ? 0 : 1;
+		int[] i1 = store1.getIndices(doc), i2 = store2.getIndices(doc);
+		float[] w1 = store1.getWeights(doc), w2 = store2.getWeights(doc);
+		double normX = Math.sqrt(sumX2), normY = Math.sqrt(sumY2);
+		double sum = 0, diff;
+		int a = 0, b = 0;
+		while (a < i1.length || b < i2.length) {
+			if (b == i2.length || (a < i1.length && i1[a] < i2[b]))
+				diff = w1[a++]/normX;
+			else if (a == i1.length || i1[a] > i2[b])
+				diff = -w2[b++]/normY;
+			else
+				diff = w1[a++]/normX - w2[b++]/normY;
+			sum += diff*diff;
+		}
+		return (float) Math.sqrt(sum);
+	}
+	
+	//Distance of the vector the entries of "doc" were computed with from
+	//its current one, both scaled to length 1 (see addDocuments); 0 until
+	//documents are added, and for the rows computed when they were
+	public float getStaleness (int doc) {
+		return (this.staleness != null) ? this.staleness[doc] : 0;
+	}
+	
+	//Bound of the difference between the entry of documents "i" and "j"
+	//and their current similarity, to rounding: the cosine of two vectors
+	//of length 1 moves by at most the distance either of them moves, and
+	//the similarities are between 0 and 1
+	public float getStaleness (int i, int j) {
+		if (i == j)
+			return 0;
+		return Math.min(1, getStaleness(i) + getStaleness(j));
 	}
 	
 	//Output the similarity matrix
@@ -259,45 +1176,87 @@ public class SimilarityMatrix {
 	}
 	
 	public void outputSimilarityMatrix (String outputFolderLocation, int decimalPoints) {	
+		this.outputSimilarityMatrix(outputFolderLocation, decimalPoints, "text");
+	}
+	
+	//argument "mode" tells how the matrix is written to the
+	//OtherOutputFiles folder:
+	//  text      the full matrix, both triangles, with "decimalPoints"
+	//            decimals, to <method>SimMatrix
+	//  gzipText  the same text, gzip compressed, to <method>SimMatrix.gz
+	//  binary    the packed lower triangle in the file format of
+	//            MappedTriangularMatrix, to <method>SimMatrix.bin, which
+	//            loadSimilarityMatrix maps back; decimalPoints is not used
+	public void outputSimilarityMatrix (String outputFolderLocation, int decimalPoints, String mode) {
+		String outputFile = outputFolderLocation + "\\OtherOutputFiles\\" + this.calcMethod + "SimMatrix";
+		if (mode.equals("binary")) {
+			try {
+				MappedTriangularMatrix.write(this.values, outputFile + ".bin");
+			} catch (IOException e) {
+				System.err.println("Error: " + e.getMessage());
+			}
+			return;
+		} else if (!mode.equals("text") && !mode.equals("gzipText"))
+			throw new UnsupportedOperationException("Unknown output mode: " + mode + "\n");
+		
 		String format = "0.";
 		for (int i = 0; i < decimalPoints; i++)
 			format += "0";
 		java.text.DecimalFormat df = new java.text.DecimalFormat(format);
 		
 		
-  	    FileOutputStream fOut = null;
+		Writer writer = null;
 	    try {
 		    String newOutputFolderName = outputFolderLocation + "\\OtherOutputFiles";
 		  	File newOutputFolder = new File(newOutputFolderName);
 		  	if (!newOutputFolder.exists()) newOutputFolder.mkdir();
 		  	
 		  	
-	  		// Open the input streams for the remote file 
-		    String outputFile = outputFolderLocation + "\\OtherOutputFiles\\" + this.calcMethod + "SimMatrix";
-		    fOut = new FileOutputStream(outputFile);
+		    OutputStream fOut = new FileOutputStream(mode.equals("gzipText") ? outputFile + ".gz" : outputFile);
+		    if (mode.equals("gzipText")) {
+		    	//the fastest compression, as the text is long and repetitive
+		    	fOut = new GZIPOutputStream(fOut, 1 << 16) {
+		    		{
+		    			def.setLevel(Deflater.BEST_SPEED);
+		    		}
+		    	};
+		    }
+		    //one byte per character, as the matrix has always been written
+		    writer = new BufferedWriter(new OutputStreamWriter(fOut, "ISO-8859-1"), 1 << 16);
 		
-		    // Open the output streams for saving this file on disk
+		    //the rows of a neighbor graph are filled from its sparse rows, as
+		    //each of its get calls searches them
+		    NeighborGraph graph = (values instanceof NeighborGraph) ? (NeighborGraph) values : null;
+		    float[] row = new float[this.numOfDocs];
 		    for (int i = 0; i < this.numOfDocs; i++) {
+		    	if (graph != null)
+		    		graph.getRow(i, row);
+		    	else {
+		    		for (int j = 0; j < this.numOfDocs; j++)
+		    			row[j] = values.get(i, j);
+		    	}
 		    	for (int j = 0; j < this.numOfDocs; j++) {
-			   		
-		    		float currSimValue = (j <= i) ? matrix[i][j] : matrix[j][i];
-		    		char[] data = df.format(currSimValue).toCharArray();
-			   		for (int k = 0; k < data.length; k++) {
-			   			fOut.write(data[k]);
-			   		}
-			   		fOut.write('\t');
+		    		writer.write(df.format(row[j]));
+			   		writer.write('\t');
 		    	}
-		    	fOut.write('\n');
+		    	writer.write('\n');
 		    }
 		    
 	    } catch (Exception e) { //Catch exception if any
           System.err.println("Error: " + e.getMessage());
         } finally {
          	try{
-           		fOut.flush(); 
-           		fOut.close();      
+         		if (writer != null)
+         			writer.close();      
          	} catch(Exception e){e.printStackTrace();}
         }
 	}
+	
+	//Maps back a matrix written by outputSimilarityMatrix in binary mode,
+	//for the clustering algorithms to use as it is. Returns null if there is
+	//no such matrix
+	public static TriangularMatrix loadSimilarityMatrix (String outputFolderLocation, String method) {
+		return MappedTriangularMatrix.open(outputFolderLocation + "\\OtherOutputFiles\\" + method + "SimMatrix.bin");
+	}
 
 }
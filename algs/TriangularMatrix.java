@@ -0,0 +1,22 @@
+package com.doccluster.algs;
+
+//Symmetric matrix of the similarities of every pair of documents, of which
+//only the lower triangle (the diagonal included) is stored. Documents are
+//numbered from 0 to size() - 1. The matrix can be kept anywhere, e.g. in a
+//MappedTriangularMatrix when it does not fit the heap
+public interface TriangularMatrix {
+	
+	//number of documents (rows)
+	int size ();
+	
+	//how the entries are kept: float, or half or byte when they are
+	//rounded to fewer bits (see QuantizedTriangularMatrix)
+	String getFormat ();
+	
+	//similarity of documents "i" and "j", in either order
+	float get (int i, int j);
+	
+	//sets the similarity of documents "i" and "j", in either order.
+	//Different entries can be set from different threads at once
+	void set (int i, int j, float value);
+}
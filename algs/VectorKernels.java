@@ -0,0 +1,71 @@
+package com.doccluster.algs;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+//The euclidean and correlation kernels of SimilarityMatrix on the Vector
+//API: the entries of the dense row at the indices of a sparse vector are
+//gathered a vector of lanes at a time, and the sums added up lane by lane,
+//with the entries past the last full vector added up as the scalar kernels
+//do. There is no cosine kernel, as its lane sums would differ to rounding
+//from those of the invertedIndex engine. The kernels gather floats, as
+//the row and the weights are, and convert each half of the lanes to
+//doubles.
+//Only loaded when the jdk.incubator.vector module is there (see
+//SimilarityMatrix.VECTOR_KERNELS); compiling it takes
+//"javac --add-modules jdk.incubator.vector"
+final class VectorKernels {
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	//as many lanes as half of FLOATS, of the same size in bits
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+	private VectorKernels () {
+	}
+
+	//See SimilarityMatrix.squaredDistance
+	static double squaredDistance (float[] row, int rowLength, double rowSquaredNorm, int[] indices, float[] wts) {
+		DoubleVector sumsDiff2 = DoubleVector.zero(DOUBLES), sharedX2s = DoubleVector.zero(DOUBLES);
+		int numShared = 0;
+		int k = 0;
+		for (int end = FLOATS.loopBound(indices.length); k < end; k += FLOATS.length()) {
+			FloatVector X = FloatVector.fromArray(FLOATS, row, 0, indices, k);
+			FloatVector Y = FloatVector.fromArray(FLOATS, wts, k);
+			numShared += X.compare(VectorOperators.NE, 0).trueCount();
+			DoubleVector lowX = (DoubleVector) X.convertShape(VectorOperators.F2D, DOUBLES, 0);
+			DoubleVector highX = (DoubleVector) X.convertShape(VectorOperators.F2D, DOUBLES, 1);
+			DoubleVector lowDiff = lowX.sub((DoubleVector) Y.convertShape(VectorOperators.F2D, DOUBLES, 0));
+			DoubleVector highDiff = highX.sub((DoubleVector) Y.convertShape(VectorOperators.F2D, DOUBLES, 1));
+			sumsDiff2 = highDiff.fma(highDiff, lowDiff.fma(lowDiff, sumsDiff2));
+			sharedX2s = highX.fma(highX, lowX.fma(lowX, sharedX2s));
+		}
+		double sumDiff2 = sumsDiff2.reduceLanes(VectorOperators.ADD);
+		double sharedX2 = sharedX2s.reduceLanes(VectorOperators.ADD);
+		for (; k < indices.length; k++) {
+			double X = row[indices[k]], Y = wts[k];
+			sumDiff2 += (X - Y)*(X - Y);
+			sharedX2 += X*X;
+			numShared += (X != 0) ? 1 : 0;
+		}
+		return sumDiff2 + ((numShared == rowLength) ? 0 : Math.max(0, rowSquaredNorm - sharedX2));
+	}
+
+	//See SimilarityMatrix.centeredDotProduct
+	static double centeredDotProduct (float[] row, double meanX, int[] indices, float[] wts) {
+		DoubleVector sums = DoubleVector.zero(DOUBLES);
+		int k = 0;
+		for (int end = FLOATS.loopBound(indices.length); k < end; k += FLOATS.length()) {
+			FloatVector X = FloatVector.fromArray(FLOATS, row, 0, indices, k);
+			FloatVector Y = FloatVector.fromArray(FLOATS, wts, k);
+			DoubleVector lowX = (DoubleVector) X.convertShape(VectorOperators.F2D, DOUBLES, 0);
+			DoubleVector highX = (DoubleVector) X.convertShape(VectorOperators.F2D, DOUBLES, 1);
+			sums = lowX.sub(meanX).fma((DoubleVector) Y.convertShape(VectorOperators.F2D, DOUBLES, 0), sums);
+			sums = highX.sub(meanX).fma((DoubleVector) Y.convertShape(VectorOperators.F2D, DOUBLES, 1), sums);
+		}
+		double covXY = sums.reduceLanes(VectorOperators.ADD);
+		for (; k < indices.length; k++)
+			covXY += (row[indices[k]] - meanX)*wts[k];
+		return covXY;
+	}
+}
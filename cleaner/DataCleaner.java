@@ -17,12 +17,6 @@ public class DataCleaner {
 	private String stopWordsFileLocation;
 	private String documentKeyword;
 	
-	//character separating each file sequence
-	private final char fileSeparatorCharacter = '$';
-	
-	//a word replacement for integer value of the fileSeparatorCharacter
-	private final String fileSeparatorReplacement = "00null00";
-	
 	//a word to indicate that the document is empty
 	private final String emptyDocumentIndicator = "00DocumentIsEmpty00";
 	
@@ -133,6 +127,8 @@ public class DataCleaner {
 		    }
 	    }
   
+	    //Adding the emptyDocumentIndicator word entry
+	    allWords.add(this.emptyDocumentIndicator);
 	    Collections.sort(allWords);
 	    outputCodedData();
 	}
@@ -204,16 +200,6 @@ public class DataCleaner {
 	    	if (!allWords.contains(nextWord))
 	    		allWords.add(nextWord);
 	    } 
-	    
-	    //Replacing the "integer value of the fileSeparatorCharacter" word entry with
-	    //the fileSeparatorReplacement string
-	    int index = (int)this.fileSeparatorCharacter;
-	    String currFileSeparatorWord = allWords.get(index);
-	    allWords.set(index, this.fileSeparatorReplacement);
-	    allWords.add(currFileSeparatorWord);
-	    
-	    //Adding the emptyDocumentIndicator word entry
-	    allWords.add(this.emptyDocumentIndicator);
 	}
 	
 	//Outpputting the cleaned data
@@ -0,0 +1,176 @@
+package com.doccluster.suffixtree;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The coded documents of a corpus as word code arrays, read once from the
+ * CodedData folder written by <code>DataCleaner</code> and shared by the
+ * suffix tree and the similarity calculations.
+ * <p>
+ * Documents are numbered from 0 in the order {@link #read} finds them:
+ * folder by folder, file by file, as listed by {@link File#listFiles}. The
+ * corpus is immutable; the arrays returned by {@link #getDocument} are the
+ * corpus's own and must not be modified.
+ */
+public class CodedCorpus {
+
+    private final String folderLocation;
+
+    private final int[][] documents;
+
+    private CodedCorpus(String folderLocation, int[][] documents) {
+        this.folderLocation = folderLocation;
+        this.documents = documents;
+    }
+
+    /**
+     * Reads the coded documents of a CodedData folder. A file that cannot be
+     * read is reported and taken as an empty document.
+     *
+     * @param folderLocation
+     *            the CodedData folder, holding one folder of coded files per
+     *            input folder
+     * @return the corpus
+     * @throws NumberFormatException
+     *             if a file holds something else than whitespace separated
+     *             word codes
+     */
+    public static CodedCorpus read(String folderLocation) {
+        File[] listOfFolders = new File(folderLocation).listFiles();
+        if (listOfFolders == null)
+            throw new UnsupportedOperationException("Cannot list "
+                    + folderLocation + "\n");
+
+        int[][] documents = new int[16][];
+        int numOfDocs = 0;
+        for (int i = 0; i < listOfFolders.length; i++) {
+            File[] listOfFiles = listOfFolders[i].listFiles();
+            for (int j = 0; j < listOfFiles.length; j++) {
+                if (numOfDocs == documents.length)
+                    documents = Arrays.copyOf(documents, 2 * numOfDocs);
+                int[] wordCodes;
+                try {
+                    wordCodes = parseWordCodes(readFile(listOfFiles[j]));
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                    wordCodes = new int[0];
+                }
+                documents[numOfDocs++] = wordCodes;
+            }
+        }
+        return new CodedCorpus(folderLocation, Arrays.copyOf(documents,
+                numOfDocs));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    // parses the word codes of a file, separated as StringTokenizer does.
+    // Codes of up to 9 digits are parsed in place; any other token is left
+    // to Integer.parseInt, to take or reject
+    private static int[] parseWordCodes(byte[] data) {
+        int[] wordCodes = new int[Math.max(16, data.length / 4)];
+        int numOfWordCodes = 0;
+        int k = 0;
+        while (true) {
+            while (k < data.length && isDelimiter(data[k]))
+                k++;
+            if (k == data.length)
+                break;
+
+            int start = k, code = 0;
+            boolean plain = true;
+            while (k < data.length && !isDelimiter(data[k])) {
+                int c = data[k++];
+                if (c >= '0' && c <= '9' && k - start <= 9)
+                    code = 10 * code + (c - '0');
+                else
+                    plain = false;
+            }
+            if (!plain)
+                code = Integer.parseInt(new String(data, start, k - start,
+                        StandardCharsets.UTF_8));
+
+            if (numOfWordCodes == wordCodes.length)
+                wordCodes = Arrays.copyOf(wordCodes, 2 * numOfWordCodes);
+            wordCodes[numOfWordCodes++] = code;
+        }
+        return Arrays.copyOf(wordCodes, numOfWordCodes);
+    }
+
+    private static boolean isDelimiter(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * @return a corpus holding the documents of this one followed by
+     *         <code>newDocuments</code>; this one is left unchanged
+     */
+    public CodedCorpus withDocuments(List<int[]> newDocuments) {
+        int[][] allDocuments = Arrays.copyOf(documents, documents.length
+                + newDocuments.size());
+        for (int i = 0; i < newDocuments.size(); i++)
+            allDocuments[documents.length + i] = newDocuments.get(i).clone();
+        return new CodedCorpus(folderLocation, allDocuments);
+    }
+
+    /**
+     * @return the CodedData folder the corpus was read from
+     */
+    public String getFolderLocation() {
+        return folderLocation;
+    }
+
+    public int numOfDocs() {
+        return documents.length;
+    }
+
+    /**
+     * @return the word codes of document <code>doc</code>, counting from 0,
+     *         in text order; not to be modified
+     */
+    public int[] getDocument(int doc) {
+        return documents[doc];
+    }
+
+    /**
+     * Lists the distinct words of a document and how many times each occurs,
+     * by sorting a copy of its word codes.
+     *
+     * @param words
+     *            receives the distinct word codes in ascending order; must
+     *            hold <code>getDocument(doc).length</code> entries
+     * @param counts
+     *            receives the occurrence counts, in the same order
+     * @return the number of distinct words
+     */
+    public int getWordCounts(int doc, int[] words, short[] counts) {
+        int[] wordCodes = documents[doc];
+        System.arraycopy(wordCodes, 0, words, 0, wordCodes.length);
+        Arrays.sort(words, 0, wordCodes.length);
+        int num = 0;
+        for (int k = 0; k < wordCodes.length; k++) {
+            if (num > 0 && words[num - 1] == words[k])
+                counts[num - 1]++;
+            else {
+                words[num] = words[k];
+                counts[num++] = 1;
+            }
+        }
+        return num;
+    }
+}
@@ -0,0 +1,60 @@
+package com.doccluster.suffixtree;
+
+/**
+ * Lightweight <code>TreeNode</code> view of a node kept in a
+ * <code>CompactNodeStore</code>. Views are created on demand and only hold the
+ * store and the node number, so two views of the same node are
+ * <code>equal</code> but not identical.
+ */
+public class CompactNode implements TreeNode {
+
+    private final CompactNodeStore store;
+
+    private final int id;
+
+    public CompactNode(CompactNodeStore store, int id) {
+        this.store = store;
+        this.id = id;
+    }
+
+    public CompactNodeStore getStore() {
+        return store;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isTerminal() {
+        return store.isTerminal(id);
+    }
+
+    /**
+     * @return the parent of this node, null if it's the root.
+     */
+    public CompactNode getParent() {
+        int parent = store.getParent(id);
+        return (parent == CompactNodeStore.NO_NODE) ? null : store
+                .getNode(parent);
+    }
+
+    public int numChildren() {
+        return store.numChildren(id);
+    }
+
+    public TreeNode getChild(int num) {
+        return (num < 0 || num >= numChildren()) ? null : store.getNode(store
+                .getChild(id, num));
+    }
+
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CompactNode))
+            return false;
+        CompactNode node = (CompactNode) obj;
+        return node.store == store && node.id == id;
+    }
+
+    public int hashCode() {
+        return id;
+    }
+}
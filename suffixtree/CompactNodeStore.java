@@ -0,0 +1,234 @@
+package com.doccluster.suffixtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Struct-of-arrays copy of a finished suffix tree.
+ * <p>
+ * Nodes are numbered in breadth-first order starting with the root (0), and
+ * every field of a node is kept in a primitive array indexed by that number.
+ * Breadth-first numbering puts the children of a node next to each other,
+ * sorted by the first symbol of their edge, so the child table is just the
+ * number of the first child plus one key per node. Additional leaf labels are
+ * kept in a single array with per-node offsets.
+ * <p>
+ * A node costs 8 ints, plus 4 bytes per additional label, instead
+ * of a <code>SimpleNode</code> object with its own child map.
+ */
+public class CompactNodeStore {
+
+    public static final int NO_NODE = -1;
+
+    private int size;
+
+    private int[] parent;
+
+    private int[] suffixLink;
+
+    private int[] labelStart, labelEnd;
+
+    private int[] textNumber;
+
+    private int[] suffixIndex;
+
+    // number of the first child; the children of node i are the nodes
+    // firstChild[i] to firstChild[i + 1] - 1
+    private int[] firstChild;
+
+    // first symbol of the edge coming down to each node
+    private int[] edgeKey;
+
+    // additional labels of node i are labels[labelOffsets[i]] to
+    // labels[labelOffsets[i + 1] - 1]
+    private int[] labelOffsets;
+
+    private int[] labels;
+
+    /**
+     * Copies the tree under <code>root</code>. The labels of the leaves must
+     * be closed, i.e. no sequence can be in the middle of being added.
+     *
+     * @param root
+     *            the root of the tree to copy
+     * @param sequences
+     *            the concatenated sequences of the tree, to read the edge keys
+     */
+    public CompactNodeStore(SuffixNode root, SequenceBuffer sequences) {
+        // numbering the nodes breadth-first, reusing the id field
+        ArrayList<SuffixNode> nodes = new ArrayList<SuffixNode>();
+        root.id = 0;
+        nodes.add(root);
+        int numOfLabels = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            SuffixNode node = nodes.get(i);
+            if (node.additionalLabels != null)
+                numOfLabels += node.additionalLabels.length;
+            if (node.isTerminal())
+                continue;
+
+            SuffixNode[] children = new SuffixNode[node.getChildren().size()];
+            int numOfChildren = 0;
+            for (SuffixNode child : node.getChildren())
+                children[numOfChildren++] = child;
+            final int parentLength = node.labelEnd - node.labelStart;
+            final SequenceBuffer text = sequences;
+            Arrays.sort(children, new Comparator<SuffixNode>() {
+                public int compare(SuffixNode x, SuffixNode y) {
+                    int xKey = text.codeAt(x.labelStart + parentLength);
+                    int yKey = text.codeAt(y.labelStart + parentLength);
+                    return (xKey < yKey) ? -1 : ((xKey == yKey) ? 0 : 1);
+                }
+            });
+            for (int j = 0; j < children.length; j++) {
+                children[j].id = nodes.size();
+                nodes.add(children[j]);
+            }
+        }
+
+        size = nodes.size();
+        parent = new int[size];
+        suffixLink = new int[size];
+        labelStart = new int[size];
+        labelEnd = new int[size];
+        textNumber = new int[size];
+        suffixIndex = new int[size];
+        firstChild = new int[size + 1];
+        edgeKey = new int[size];
+        labelOffsets = new int[size + 1];
+        labels = new int[numOfLabels];
+
+        int nextChild = 1;
+        numOfLabels = 0;
+        for (int i = 0; i < size; i++) {
+            SuffixNode node = nodes.get(i);
+            parent[i] = (node.parent == null) ? NO_NODE : node.parent.id;
+            suffixLink[i] = (node.suffixLink == null) ? NO_NODE
+                    : node.suffixLink.id;
+            labelStart[i] = node.labelStart;
+            labelEnd[i] = node.labelEnd;
+            textNumber[i] = node.textNumber;
+            if (node instanceof SimpleNode)
+                suffixIndex[i] = ((SimpleNode) node).suffixIndex;
+            if (i > 0)
+                edgeKey[i] = sequences.codeAt(node.labelStart
+                        + getPathLength(parent[i]));
+
+            firstChild[i] = nextChild;
+            if (!node.isTerminal())
+                nextChild += node.getChildren().size();
+
+            labelOffsets[i] = numOfLabels;
+            if (node.additionalLabels != null) {
+                System.arraycopy(node.additionalLabels, 0, labels,
+                        numOfLabels, node.additionalLabels.length);
+                numOfLabels += node.additionalLabels.length;
+            }
+        }
+        firstChild[size] = nextChild;
+        labelOffsets[size] = numOfLabels;
+    }
+
+    /**
+     * @return the number of nodes, including the root
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getRoot() {
+        return 0;
+    }
+
+    /**
+     * @return a <code>TreeNode</code> view of a node
+     */
+    public CompactNode getNode(int node) {
+        return new CompactNode(this, node);
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int getSuffixLink(int node) {
+        return suffixLink[node];
+    }
+
+    public int getLabelStart(int node) {
+        return labelStart[node];
+    }
+
+    public int getLabelEnd(int node) {
+        return labelEnd[node];
+    }
+
+    public int getPathLength(int node) {
+        return labelEnd[node] - labelStart[node];
+    }
+
+    public int getEdgeLength(int node) {
+        return (parent[node] == NO_NODE) ? 0 : getPathLength(node)
+                - getPathLength(parent[node]);
+    }
+
+    public int getTextNumber(int node) {
+        return textNumber[node];
+    }
+
+    public int getSuffixIndex(int node) {
+        return suffixIndex[node];
+    }
+
+    public boolean isTerminal(int node) {
+        return firstChild[node] == firstChild[node + 1];
+    }
+
+    public int numChildren(int node) {
+        return firstChild[node + 1] - firstChild[node];
+    }
+
+    /**
+     * @param num
+     *            the number of the child wanted, counting from 0
+     * @return the child, ordered by the first symbol of its edge
+     */
+    public int getChild(int node, int num) {
+        return firstChild[node] + num;
+    }
+
+    /**
+     * @return the child whose edge starts with <code>x</code>, or
+     *         <code>NO_NODE</code> if there is none
+     */
+    public int findChild(int node, int x) {
+        int low = firstChild[node], high = firstChild[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (edgeKey[mid] < x)
+                low = mid + 1;
+            else if (edgeKey[mid] > x)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return NO_NODE;
+    }
+
+    public int numAdditionalLabels(int node) {
+        return labelOffsets[node + 1] - labelOffsets[node];
+    }
+
+    public int getAdditionalLabel(int node, int num) {
+        return labels[labelOffsets[node] + num];
+    }
+
+    /**
+     * @return the number of bytes held by the arrays of the store
+     */
+    public long bytesUsed() {
+        return 4L * (9L * size + 2 + labels.length);
+    }
+}
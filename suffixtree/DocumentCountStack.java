@@ -0,0 +1,161 @@
+package com.doccluster.suffixtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stack of the open nodes of a bottom-up count of the node document lists,
+ * with the per document occurrence counts of the children seen so far. Used
+ * by the suffix tree walk and by the LCP interval walk of the suffix array.
+ * <p>
+ * Counts within a single document are kept as a document and a count, so
+ * most nodes allocate no map. A node found in too many documents is marked
+ * instead of counted, as the nodes above it are in as many. Nodes whose label
+ * is shorter than <code>minPhraseLength</code> are not counted either, as the
+ * labels above them are shorter still.
+ */
+class DocumentCountStack {
+
+    private final int minPhraseLength;
+
+    // path length of each open node, and an int the caller keeps with it
+    // (the slot of a tree node, the left bound of an interval)
+    private int[] pathLengths = new int[16], tags = new int[16];
+
+    private int[] singleDocs = new int[16];
+
+    private short[] singleCounts = new short[16];
+
+    private boolean[] tooFrequent = new boolean[16];
+
+    private final List<Map<Integer, Short>> docLists = new ArrayList<Map<Integer, Short>>();
+
+    private int top = -1;
+
+    DocumentCountStack(int minPhraseLength) {
+        this.minPhraseLength = minPhraseLength;
+    }
+
+    boolean isEmpty() {
+        return top < 0;
+    }
+
+    void push(int pathLength, int tag) {
+        if (++top == pathLengths.length) {
+            pathLengths = Arrays.copyOf(pathLengths, 2 * top);
+            tags = Arrays.copyOf(tags, 2 * top);
+            singleDocs = Arrays.copyOf(singleDocs, 2 * top);
+            singleCounts = Arrays.copyOf(singleCounts, 2 * top);
+            tooFrequent = Arrays.copyOf(tooFrequent, 2 * top);
+        }
+        pathLengths[top] = pathLength;
+        tags[top] = tag;
+        singleDocs[top] = -1;
+        singleCounts[top] = 0;
+        tooFrequent[top] = false;
+        docLists.add(null);
+    }
+
+    void pop() {
+        docLists.remove(top--);
+    }
+
+    int pathLength() {
+        return pathLengths[top];
+    }
+
+    int tag() {
+        return tags[top];
+    }
+
+    /**
+     * @return the counts of the top node, or null if they are within a
+     *         single document (see {@link #singleDoc}) or not counted
+     */
+    Map<Integer, Short> docList() {
+        return docLists.get(top);
+    }
+
+    /**
+     * @return the document of the counts of the top node when they are
+     *         within a single one, -1 otherwise
+     */
+    int singleDoc() {
+        return singleDocs[top];
+    }
+
+    short singleCount() {
+        return singleCounts[top];
+    }
+
+    boolean isTooFrequent() {
+        return tooFrequent[top];
+    }
+
+    int documentFrequency() {
+        Map<Integer, Short> docList = docLists.get(top);
+        if (docList != null)
+            return docList.size();
+        return (singleDocs[top] == -1) ? 0 : 1;
+    }
+
+    private boolean isCounted() {
+        return pathLengths[top] >= minPhraseLength && !tooFrequent[top];
+    }
+
+    void setTooFrequent() {
+        tooFrequent[top] = true;
+        docLists.set(top, null);
+        singleDocs[top] = -1;
+    }
+
+    void addCount(int doc, short count) {
+        if (!isCounted())
+            return;
+        Map<Integer, Short> docList = docLists.get(top);
+        if (docList != null)
+            UkkonenSuffixTree.addDocumentCount(docList, doc, count);
+        else if (singleDocs[top] == -1 || singleDocs[top] == doc) {
+            singleDocs[top] = doc;
+            singleCounts[top] += count;
+        } else {
+            docList = new HashMap<Integer, Short>();
+            UkkonenSuffixTree.addDocumentCount(docList, singleDocs[top],
+                    singleCounts[top]);
+            UkkonenSuffixTree.addDocumentCount(docList, doc, count);
+            docLists.set(top, docList);
+            singleDocs[top] = -1;
+        }
+    }
+
+    /**
+     * Adds the counts of a child to the top node. An owned map (one not kept
+     * in the lists) is taken over instead of copied.
+     */
+    void addDocList(Map<Integer, Short> childDocList, boolean owned) {
+        if (!isCounted())
+            return;
+        Map<Integer, Short> docList = docLists.get(top);
+        if (docList == null) {
+            docList = owned ? childDocList : new HashMap<Integer, Short>(
+                    childDocList);
+            if (singleDocs[top] != -1)
+                UkkonenSuffixTree.addDocumentCount(docList, singleDocs[top],
+                        singleCounts[top]);
+            docLists.set(top, docList);
+            singleDocs[top] = -1;
+            return;
+        }
+        if (owned && childDocList.size() > docList.size()) {
+            docLists.set(top, childDocList);
+            childDocList = docList;
+            docList = docLists.get(top);
+        }
+        for (Map.Entry<Integer, Short> entry : childDocList.entrySet())
+            UkkonenSuffixTree.addDocumentCount(docList, entry.getKey(),
+                    entry.getValue());
+    }
+}
@@ -0,0 +1,817 @@
+package com.doccluster.suffixtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Generalized suffix array over sequences of word codes, an array based
+ * alternative to <code>UkkonenSuffixTree</code> for large corpora.
+ * <p>
+ * Every sequence is terminated by a sentinel of its own, as in
+ * {@link UkkonenSuffixTree#addSequence(int[], int)}. The suffix array is built
+ * with SA-IS and the LCP array with Kasai's algorithm, both in linear time.
+ * The internal nodes of the generalized suffix tree are the LCP intervals of
+ * the array, so the node document lists can be filled in without any node
+ * objects: the text, the suffix array and the LCP array take 3 ints per
+ * symbol, and construction peaks at about 5 (about 6 in parallel).
+ * <p>
+ * Given a <code>ForkJoinPool</code>, the documents are split into contiguous
+ * shards whose suffix arrays are built in parallel and merged. A suffix
+ * never reads past the sentinel ending its document, so the shard arrays
+ * merge into the array of the whole text, and phrases shared across shards
+ * are found as if there was a single shard. The merge places each suffix of
+ * one run among the suffixes of the other by its first symbol and the place
+ * of the suffix after it, a symbol at a time from the end of its document,
+ * so it never compares suffixes past their first symbol and takes the same
+ * time on repetitive documents as on any others. The LCP array is computed
+ * by Kasai's algorithm over the documents in parallel, and the node
+ * document lists in parallel too.
+ */
+public class GeneralizedSuffixArray {
+
+    // the concatenated sequences, each followed by -(its number)
+    private SequenceBuffer sequences;
+
+    private int[] sequenceStarts;
+
+    private int numOfSequences;
+
+    // suffix array and LCP array, null until built. lcp[i] is the length
+    // of the longest common prefix of the suffixes at suffixArray[i - 1] and
+    // suffixArray[i]
+    private int[] suffixArray;
+
+    private int[] lcp;
+
+    // path labels of the nodes of the last constructNodeDocumentList call
+    private NodeLabels nodeLabels;
+
+    // pool of the parallel construction, null to build on the calling thread
+    private ForkJoinPool pool;
+
+    // thresholds on the nodes kept by constructNodeDocumentList
+    private NodePruning nodePruning = NodePruning.NONE;
+
+    // a task merges or compares at least this many suffixes sequentially
+    private static final int SEQUENTIAL_THRESHOLD = 1 << 13;
+
+    /**
+     * Creates an empty suffix array, built on the calling thread
+     */
+    public GeneralizedSuffixArray() {
+        sequences = new SequenceBuffer();
+        sequenceStarts = new int[16];
+        numOfSequences = 0;
+    }
+
+    /**
+     * Creates an empty suffix array, built in parallel
+     *
+     * @param pool
+     *            the pool to build the arrays and the node document lists
+     *            on; there are 4 shards for each of its threads
+     */
+    public GeneralizedSuffixArray(ForkJoinPool pool) {
+        this();
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the thresholds on the nodes kept by
+     * {@link #constructNodeDocumentList}, as
+     * {@link UkkonenSuffixTree#setNodePruning} does for the tree.
+     */
+    public void setNodePruning(NodePruning nodePruning) {
+        this.nodePruning = nodePruning;
+    }
+
+    /**
+     * Adds a sequence of word codes. The arrays are rebuilt the next time they
+     * are needed.
+     *
+     * @param codes
+     *            the word codes of the sequence, all of them non-negative
+     */
+    public void addSequence(int[] codes) {
+        if (codes == null)
+            return;
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] < 0)
+                throw new IllegalArgumentException("Negative word code "
+                        + codes[i] + " at position " + i);
+        }
+
+        if (numOfSequences == sequenceStarts.length)
+            sequenceStarts = Arrays.copyOf(sequenceStarts, 2 * numOfSequences);
+        sequenceStarts[numOfSequences++] = sequences.length();
+        sequences.append(codes, 0, codes.length);
+        sequences.append(-numOfSequences);
+        suffixArray = null;
+        lcp = null;
+    }
+
+    public int numOfSequences() {
+        return numOfSequences;
+    }
+
+    /**
+     * @return the number of suffixes, i.e. the length of the text including
+     *         the sentinels
+     */
+    public int length() {
+        return sequences.length();
+    }
+
+    /**
+     * @return the start position of the suffix of the given rank
+     */
+    public int getSuffix(int rank) {
+        build();
+        return suffixArray[rank];
+    }
+
+    /**
+     * @return the length of the longest common prefix of the suffixes of
+     *         rank <code>rank - 1</code> and <code>rank</code> (0 for rank 0)
+     */
+    public int getLcp(int rank) {
+        build();
+        return lcp[rank];
+    }
+
+    /**
+     * @return the symbol at the given text position; sentinels are negative
+     */
+    public int codeAt(int position) {
+        return sequences.codeAt(position);
+    }
+
+    /**
+     * @return the text position of the path label of node <code>node</code>
+     *         of the last node document lists constructed
+     */
+    public int getNodeLabelStart(int node) {
+        return nodeLabels.starts[node];
+    }
+
+    /**
+     * @return the number of symbols in the path label of node
+     *         <code>node</code> of the last node document lists constructed
+     */
+    public int getNodeLabelLength(int node) {
+        return nodeLabels.lengths[node];
+    }
+
+    /**
+     * @return the number (counting from 0) of the sequence the given text
+     *         position belongs to
+     */
+    public int getSequenceNumber(int position) {
+        int low = 0, high = numOfSequences - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (sequenceStarts[mid] <= position)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * @return the number of bytes held by the text and the built arrays
+     */
+    public long bytesUsed() {
+        long n = sequences.length();
+        return 4L * (n + ((suffixArray == null) ? 0 : 2 * n) + numOfSequences);
+    }
+
+    /**
+     * Builds the suffix array and the LCP array, if they are not built yet.
+     */
+    public void build() {
+        if (suffixArray != null)
+            return;
+        int n = sequences.length();
+
+        // symbols are shifted to be positive and sentinels are put below them,
+        // keeping their order: sequence d ends with numOfSequences - d + 1, so
+        // the text ends with 1, the unique smallest symbol that SA-IS needs
+        int[] text = new int[n];
+        int maxCode = 0;
+        for (int i = 0; i < n; i++) {
+            int code = sequences.codeAt(i);
+            text[i] = (code < 0) ? numOfSequences + code + 1 : code
+                    + numOfSequences + 1;
+            maxCode = Math.max(maxCode, text[i]);
+        }
+
+        if (pool == null) {
+            suffixArray = new int[n];
+            if (n > 0)
+                sais(text, suffixArray, n, maxCode + 1);
+            lcp = kasai(text, suffixArray, n);
+        } else {
+            int docsPerShard = Math.max(1, (numOfSequences
+                    + 4 * pool.getParallelism() - 1)
+                    / (4 * pool.getParallelism()));
+            // rank, the inverse of a suffix array, and count, the place of
+            // each suffix in another run, are kept at the text position of
+            // the suffix: the runs merged at once hold different documents,
+            // so they share the arrays
+            int[] rank = new int[n];
+            int[] count = new int[n];
+            suffixArray = (numOfSequences == 0) ? new int[0] : pool
+                    .invoke(new ShardTask(text, maxCode + 1, 0,
+                            numOfSequences, docsPerShard, rank, count));
+            count = null;
+            lcp = new int[n];
+            pool.invoke(new RankTask(suffixArray, rank, 0, n));
+            pool.invoke(new LcpTask(text, rank, 0, numOfSequences));
+        }
+    }
+
+    /**
+     * Fills the given lists the way
+     * {@link UkkonenSuffixTree#constructNodeDocumentList()} does: one entry for
+     * every internal node of the generalized suffix tree kept by the
+     * pruning thresholds (by default, whose label occurs in two documents or
+     * more), in pre-order with the children of a node sorted by the first
+     * symbol of their edge.
+     * <p>
+     * The internal nodes are the LCP intervals of the array. They are
+     * visited bottom-up with a stack, every interval adding the document
+     * counts of its children up, and the finished intervals are put back in
+     * pre-order at the end.
+     *
+     * @param docLists
+     *            receives the occurrence counts of each node, per document
+     * @param scores
+     *            receives the cluster score of each node
+     */
+    public void constructNodeDocumentList(List<Map<Integer, Short>> docLists,
+            List<Float> scores) {
+        build();
+        docLists.clear();
+        scores.clear();
+        int n = suffixArray.length;
+
+        nodeLabels = new NodeLabels();
+        if (pool == null) {
+            walkIntervals(0, n, docLists, scores, nodeLabels);
+            return;
+        }
+
+        // the ranks are cut where the LCP is 0, i.e. between two children
+        // of the root, so every range holds whole subtrees
+        int numOfRanges = 4 * pool.getParallelism();
+        final List<IntervalTask> tasks = new ArrayList<IntervalTask>();
+        int from = 0;
+        for (int r = 1; r <= numOfRanges && from < n; r++) {
+            int to = Math.max(from + 1, (int) ((long) n * r / numOfRanges));
+            while (to < n && lcp[to] != 0)
+                to++;
+            if (r == numOfRanges)
+                to = n;
+            tasks.add(new IntervalTask(from, to));
+            from = to;
+        }
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        for (IntervalTask task : tasks) {
+            docLists.addAll(task.docLists);
+            scores.addAll(task.scores);
+            for (int j = 0; j < task.labels.size; j++)
+                nodeLabels.add(task.labels.starts[j], task.labels.lengths[j]);
+        }
+    }
+
+    /**
+     * Adds the node document lists of the LCP intervals within the ranks
+     * <code>from</code> to <code>to - 1</code> to the given lists, in
+     * pre-order, and their path labels to <code>labels</code>.
+     * <code>lcp[from]</code> and <code>lcp[to]</code> must be 0 (or out of
+     * the array).
+     */
+    private void walkIntervals(int from, int to,
+            List<Map<Integer, Short>> docLists, List<Float> scores,
+            NodeLabels labels) {
+        // kept intervals, in the order they finish
+        List<Map<Integer, Short>> finishedDocLists = new ArrayList<Map<Integer, Short>>();
+        List<Float> finishedScores = new ArrayList<Float>();
+        long[] finishedOrder = new long[16];
+        int[] finishedLengths = new int[16];
+
+        // the open intervals; the bottom one is the root, which is not kept
+        int maxDocumentFrequency = nodePruning
+                .maxDocumentFrequency(numOfSequences);
+        DocumentCountStack stack = new DocumentCountStack(
+                nodePruning.minPhraseLength);
+        stack.push(0, from);
+
+        for (int i = from + 1; i <= to; i++) {
+            int h = (i < to) ? lcp[i] : 0;
+            int leafDoc = getSequenceNumber(suffixArray[i - 1]);
+
+            // suffix i - 1 belongs to the deepest open interval, unless a
+            // deeper one opens at i - 1
+            if (h > stack.pathLength()) {
+                stack.push(h, i - 1);
+                stack.addCount(leafDoc, (short) 1);
+                continue;
+            }
+            stack.addCount(leafDoc, (short) 1);
+
+            while (h < stack.pathLength()) {
+                int lb = stack.tag();
+                int length = stack.pathLength();
+                int df = stack.documentFrequency();
+                boolean tooFrequent = stack.isTooFrequent()
+                        || df > maxDocumentFrequency;
+                Map<Integer, Short> docList = stack.docList();
+                int singleDoc = stack.singleDoc();
+                short singleCount = stack.singleCount();
+                stack.pop();
+
+                boolean kept = !tooFrequent && nodePruning.isListable(length)
+                        && df >= nodePruning.minDocumentFrequency;
+                if (kept) {
+                    int k = finishedDocLists.size();
+                    if (k == finishedOrder.length) {
+                        finishedOrder = Arrays.copyOf(finishedOrder, 2 * k);
+                        finishedLengths = Arrays.copyOf(finishedLengths, 2 * k);
+                    }
+                    finishedLengths[k] = length;
+                    // the enclosing intervals of a left bound finish after
+                    // the ones they enclose and go before them in pre-order
+                    finishedOrder[k] = ((long) lb << 32)
+                            | (Integer.MAX_VALUE - k);
+                    finishedDocLists.add(docList);
+                    finishedScores.add((float) ((i - lb) * UkkonenSuffixTree
+                            .calcWeightedWordCount(length)));
+                }
+
+                // the interval opening at lb starts with this child
+                if (h > stack.pathLength())
+                    stack.push(h, lb);
+                if (tooFrequent)
+                    stack.setTooFrequent();
+                else if (docList != null)
+                    stack.addDocList(docList, !kept);
+                else if (singleDoc != -1)
+                    stack.addCount(singleDoc, singleCount);
+            }
+        }
+
+        int numOfFinished = finishedDocLists.size();
+        Arrays.sort(finishedOrder, 0, numOfFinished);
+        for (int j = 0; j < numOfFinished; j++) {
+            int k = Integer.MAX_VALUE - (int) finishedOrder[j];
+            docLists.add(finishedDocLists.get(k));
+            scores.add(finishedScores.get(k));
+            labels.add(suffixArray[(int) (finishedOrder[j] >>> 32)],
+                    finishedLengths[k]);
+        }
+    }
+
+    /***************************************************************************
+     * Parallel construction tasks
+     **************************************************************************/
+
+    // builds the suffix array of the documents docFrom to docTo - 1, with
+    // suffixes numbered by their position in the whole text
+    private class ShardTask extends RecursiveTask<int[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] text, rank, count;
+
+        private final int k, docFrom, docTo, docsPerShard;
+
+        ShardTask(int[] text, int k, int docFrom, int docTo, int docsPerShard,
+                int[] rank, int[] count) {
+            this.text = text;
+            this.k = k;
+            this.docFrom = docFrom;
+            this.docTo = docTo;
+            this.docsPerShard = docsPerShard;
+            this.rank = rank;
+            this.count = count;
+        }
+
+        protected int[] compute() {
+            if (docTo - docFrom <= docsPerShard) {
+                // the shard ends with the sentinel of its last document,
+                // which is the smallest symbol in it
+                int start = sequenceStarts[docFrom];
+                int end = (docTo < numOfSequences) ? sequenceStarts[docTo]
+                        : text.length;
+                int[] shardArray = new int[end - start];
+                sais(Arrays.copyOfRange(text, start, end), shardArray, end
+                        - start, k);
+                for (int i = 0; i < shardArray.length; i++)
+                    shardArray[i] += start;
+                return shardArray;
+            }
+
+            int docMid = (docFrom + docTo) >>> 1;
+            ShardTask left = new ShardTask(text, k, docFrom, docMid,
+                    docsPerShard, rank, count);
+            left.fork();
+            int[] rightArray = new ShardTask(text, k, docMid, docTo,
+                    docsPerShard, rank, count).compute();
+            int[] leftArray = left.join();
+
+            // the place of every suffix of the left run among the suffixes
+            // of the right one, from which both runs are placed
+            new RankTask(rightArray, rank, 0, rightArray.length).invoke();
+            int[] buckets = new int[k + 1];
+            int[] nextRanks = new int[rightArray.length];
+            for (int i = 0; i < rightArray.length; i++) {
+                buckets[text[rightArray[i]] + 1]++;
+                // a sentinel ends its document, with no suffix after it
+                if (text[rightArray[i]] > numOfSequences)
+                    nextRanks[i] = rank[rightArray[i] + 1];
+            }
+            for (int c = 0; c < k; c++)
+                buckets[c + 1] += buckets[c];
+            new CountTask(text, nextRanks, buckets, count, docFrom, docMid)
+                    .invoke();
+            int[] merged = new int[leftArray.length + rightArray.length];
+            new PlaceTask(leftArray, rightArray, count, merged, 0,
+                    leftArray.length).invoke();
+            return merged;
+        }
+    }
+
+    // sets rank[suffixArray[i]] to i, for i from from to to - 1
+    private static class RankTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] suffixArray, rank;
+
+        private final int from, to;
+
+        RankTask(int[] suffixArray, int[] rank, int from, int to) {
+            this.suffixArray = suffixArray;
+            this.rank = rank;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                for (int i = from; i < to; i++)
+                    rank[suffixArray[i]] = i;
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RankTask(suffixArray, rank, from, mid),
+                    new RankTask(suffixArray, rank, mid, to));
+        }
+    }
+
+    // sets count[p], for every suffix p of the documents docFrom to
+    // docTo - 1, to the number of suffixes of a run b that are smaller,
+    // given the rank in b of the suffix after each suffix of b in
+    // nextRanks, and the rank of the first suffix of b starting with each
+    // symbol c, or a larger one, in buckets[c]. The suffixes of b before
+    // p are the ones whose first symbol is smaller, and of those with the
+    // same first symbol, the ones whose next suffix is before p + 1. These
+    // are ordered as their next suffixes, so they are found by a binary
+    // search on the ranks of those, once count[p + 1] is known: the
+    // suffixes of a document are counted from its end
+    private class CountTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] text, nextRanks, buckets, count;
+
+        private final int docFrom, docTo;
+
+        CountTask(int[] text, int[] nextRanks, int[] buckets, int[] count,
+                int docFrom, int docTo) {
+            this.text = text;
+            this.nextRanks = nextRanks;
+            this.buckets = buckets;
+            this.count = count;
+            this.docFrom = docFrom;
+            this.docTo = docTo;
+        }
+
+        protected void compute() {
+            if (docTo - docFrom == 1
+                    || sequenceEnd(docTo - 1) - sequenceStarts[docFrom] <= SEQUENTIAL_THRESHOLD) {
+                for (int d = docFrom; d < docTo; d++) {
+                    // the sentinel is in no other document
+                    int p = sequenceEnd(d) - 1;
+                    count[p] = buckets[text[p]];
+                    for (p--; p >= sequenceStarts[d]; p--) {
+                        int low = buckets[text[p]];
+                        int high = buckets[text[p] + 1];
+                        int next = count[p + 1];
+                        while (low < high) {
+                            int mid = (low + high) >>> 1;
+                            if (nextRanks[mid] < next)
+                                low = mid + 1;
+                            else
+                                high = mid;
+                        }
+                        count[p] = low;
+                    }
+                }
+                return;
+            }
+            int docMid = (docFrom + docTo) >>> 1;
+            invokeAll(new CountTask(text, nextRanks, buckets, count, docFrom,
+                    docMid), new CountTask(text, nextRanks, buckets, count,
+                    docMid, docTo));
+        }
+    }
+
+    // merges the runs a and b into out, given the place count[a[i]] of
+    // every suffix of a among those of b: a[i] goes to i + count[a[i]], and
+    // the suffixes of b fill the places between in order. Ranks from to
+    // to - 1 of a are placed with the suffixes of b before them
+    private static class PlaceTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] a, b, count, out;
+
+        private final int from, to;
+
+        PlaceTask(int[] a, int[] b, int[] count, int[] out, int from, int to) {
+            this.a = a;
+            this.b = b;
+            this.count = count;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                int j = (from == 0) ? 0 : count[a[from - 1]];
+                int o = from + j;
+                for (int i = from; i < to; i++) {
+                    int place = i + count[a[i]];
+                    while (o < place)
+                        out[o++] = b[j++];
+                    out[o++] = a[i];
+                }
+                if (to == a.length) {
+                    while (j < b.length)
+                        out[o++] = b[j++];
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PlaceTask(a, b, count, out, from, mid),
+                    new PlaceTask(a, b, count, out, mid, to));
+        }
+    }
+
+    // fills the LCP array by Kasai's algorithm over the suffixes of the
+    // documents docFrom to docTo - 1, given the inverse of the suffix array
+    // in rank. The LCP of a suffix is at least that of the suffix before it
+    // in the text less one, so each document starts from 0 on its own
+    private class LcpTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] text, rank;
+
+        private final int docFrom, docTo;
+
+        LcpTask(int[] text, int[] rank, int docFrom, int docTo) {
+            this.text = text;
+            this.rank = rank;
+            this.docFrom = docFrom;
+            this.docTo = docTo;
+        }
+
+        protected void compute() {
+            if (docTo - docFrom == 1
+                    || sequenceEnd(docTo - 1) - sequenceStarts[docFrom] <= SEQUENTIAL_THRESHOLD) {
+                for (int d = docFrom; d < docTo; d++) {
+                    int h = 0;
+                    for (int i = sequenceStarts[d]; i < sequenceEnd(d); i++) {
+                        if (rank[i] > 0) {
+                            int j = suffixArray[rank[i] - 1];
+                            while (text[i + h] == text[j + h])
+                                h++;
+                            lcp[rank[i]] = h;
+                            if (h > 0)
+                                h--;
+                        } else
+                            h = 0;
+                    }
+                }
+                return;
+            }
+            int docMid = (docFrom + docTo) >>> 1;
+            invokeAll(new LcpTask(text, rank, docFrom, docMid), new LcpTask(
+                    text, rank, docMid, docTo));
+        }
+    }
+
+    // node document lists of the intervals within a range of ranks
+    private class IntervalTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        final List<Map<Integer, Short>> docLists = new ArrayList<Map<Integer, Short>>();
+
+        final List<Float> scores = new ArrayList<Float>();
+
+        final NodeLabels labels = new NodeLabels();
+
+        IntervalTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            walkIntervals(from, to, docLists, scores, labels);
+        }
+    }
+
+    // start in the text and number of symbols of the path label of each node
+    private static class NodeLabels {
+
+        int[] starts = new int[16], lengths = new int[16];
+
+        int size;
+
+        void add(int start, int length) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * size);
+                lengths = Arrays.copyOf(lengths, 2 * size);
+            }
+            starts[size] = start;
+            lengths[size++] = length;
+        }
+    }
+
+    // text position after the sentinel of sequence d
+    private int sequenceEnd(int d) {
+        return (d + 1 < numOfSequences) ? sequenceStarts[d + 1] : sequences
+                .length();
+    }
+
+    /***************************************************************************
+     * SA-IS construction (Nong, Zhang and Chan, 2009)
+     **************************************************************************/
+
+    /**
+     * Sorts the suffixes of <code>s[0..n-1]</code> into <code>sa</code>. The
+     * symbols must be in <code>[0, k)</code> and <code>s[n-1]</code> must be
+     * the unique smallest one.
+     */
+    private static void sais(int[] s, int[] sa, int n, int k) {
+        if (n == 1) {
+            sa[0] = 0;
+            return;
+        }
+
+        // S-type (true) or L-type (false) of every suffix
+        boolean[] t = new boolean[n];
+        t[n - 1] = true;
+        for (int i = n - 2; i >= 0; i--)
+            t[i] = s[i] < s[i + 1] || (s[i] == s[i + 1] && t[i + 1]);
+
+        // stage 1: sorting the LMS substrings
+        int[] bkt = new int[k];
+        getBuckets(s, bkt, n, k, true);
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLMS(t, i))
+                sa[--bkt[s[i]]] = i;
+        }
+        induceSA(s, sa, t, bkt, n, k);
+
+        // putting the sorted LMS substrings first and naming them
+        int n1 = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLMS(t, sa[i]))
+                sa[n1++] = sa[i];
+        }
+        Arrays.fill(sa, n1, n, -1);
+        int name = 0, prev = -1;
+        for (int i = 0; i < n1; i++) {
+            int pos = sa[i];
+            boolean diff = false;
+            for (int d = 0; d < n; d++) {
+                if (prev == -1 || s[pos + d] != s[prev + d]
+                        || t[pos + d] != t[prev + d]) {
+                    diff = true;
+                    break;
+                } else if (d > 0 && (isLMS(t, pos + d) || isLMS(t, prev + d)))
+                    break;
+            }
+            if (diff) {
+                name++;
+                prev = pos;
+            }
+            sa[n1 + pos / 2] = name - 1;
+        }
+        int[] s1 = new int[n1];
+        for (int i = n - 1, j = n1 - 1; i >= n1; i--) {
+            if (sa[i] >= 0)
+                s1[j--] = sa[i];
+        }
+
+        // stage 2: sorting the reduced string, recursing if names repeat
+        int[] sa1 = new int[n1];
+        if (name < n1)
+            sais(s1, sa1, n1, name);
+        else
+            for (int i = 0; i < n1; i++)
+                sa1[s1[i]] = i;
+
+        // stage 3: inducing the suffix array from the sorted LMS suffixes
+        for (int i = 1, j = 0; i < n; i++) {
+            if (isLMS(t, i))
+                s1[j++] = i;
+        }
+        for (int i = 0; i < n1; i++)
+            sa1[i] = s1[sa1[i]];
+        s1 = null;
+        getBuckets(s, bkt, n, k, true);
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = n1 - 1; i >= 0; i--)
+            sa[--bkt[s[sa1[i]]]] = sa1[i];
+        induceSA(s, sa, t, bkt, n, k);
+    }
+
+    private static boolean isLMS(boolean[] t, int i) {
+        return i > 0 && t[i] && !t[i - 1];
+    }
+
+    // sets bkt to the end (or the start) of the bucket of every symbol
+    private static void getBuckets(int[] s, int[] bkt, int n, int k,
+            boolean end) {
+        Arrays.fill(bkt, 0, k, 0);
+        for (int i = 0; i < n; i++)
+            bkt[s[i]]++;
+        int sum = 0;
+        for (int i = 0; i < k; i++) {
+            sum += bkt[i];
+            bkt[i] = end ? sum : sum - bkt[i];
+        }
+    }
+
+    // induces the order of the L-type suffixes, then of the S-type ones,
+    // from the LMS suffixes placed at the ends of their buckets
+    private static void induceSA(int[] s, int[] sa, boolean[] t, int[] bkt,
+            int n, int k) {
+        getBuckets(s, bkt, n, k, false);
+        for (int i = 0; i < n; i++) {
+            int j = sa[i] - 1;
+            if (j >= 0 && !t[j])
+                sa[bkt[s[j]]++] = j;
+        }
+        getBuckets(s, bkt, n, k, true);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = sa[i] - 1;
+            if (j >= 0 && t[j])
+                sa[--bkt[s[j]]] = j;
+        }
+    }
+
+    /**
+     * Kasai's LCP construction. The sentinels are unique, so no comparison
+     * runs past the end of a sequence.
+     */
+    private static int[] kasai(int[] s, int[] sa, int n) {
+        int[] rank = new int[n];
+        for (int i = 0; i < n; i++)
+            rank[sa[i]] = i;
+        int[] lcp = new int[n];
+        int h = 0;
+        for (int i = 0; i < n; i++) {
+            if (rank[i] > 0) {
+                int j = sa[rank[i] - 1];
+                while (s[i + h] == s[j + h])
+                    h++;
+                lcp[rank[i]] = h;
+                if (h > 0)
+                    h--;
+            } else
+                h = 0;
+        }
+        return lcp;
+    }
+}
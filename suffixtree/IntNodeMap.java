@@ -0,0 +1,215 @@
+package com.doccluster.suffixtree;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Map from the first symbol of an edge to the child node below it.
+ * <p>
+ * Keys are kept as primitive ints (a char, a word code or a negative sequence
+ * terminator), so lookups during construction neither box nor allocate. Nodes with few children keep their keys in a small sorted
+ * array searched by binary search; once a node has more than
+ * <code>SORTED_LIMIT</code> children (as the root and other wide nodes do)
+ * the map switches to an open-addressing hash table with linear probing.
+ * <p>
+ * Iteration is in key order while the map is small, and in table order once
+ * it has switched to hashing.
+ */
+public class IntNodeMap implements Iterable<SuffixNode> {
+
+    public static final int SORTED_LIMIT = 8;
+
+    private int[] keys;
+
+    private SuffixNode[] values;
+
+    private int size;
+
+    private boolean hashed;
+
+    public IntNodeMap() {
+        keys = new int[2];
+        values = new SuffixNode[2];
+        size = 0;
+        hashed = false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the child under key <code>x</code>, or null if there is none
+     */
+    public SuffixNode get(int x) {
+        if (hashed) {
+            int mask = keys.length - 1;
+            for (int i = hash(x) & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == x)
+                    return values[i];
+            }
+            return null;
+        }
+        int index = sortedIndexOf(x);
+        return (index >= 0) ? values[index] : null;
+    }
+
+    /**
+     * Adds a child under key <code>x</code>, replacing the child already
+     * there, if any.
+     */
+    public void put(int x, SuffixNode node) {
+        if (hashed) {
+            if (2 * (size + 1) > keys.length)
+                rehash(2 * keys.length);
+            if (hashPut(keys, values, x, node))
+                size++;
+            return;
+        }
+
+        int index = sortedIndexOf(x);
+        if (index >= 0) {
+            values[index] = node;
+            return;
+        }
+        if (size == SORTED_LIMIT) {
+            rehash(4 * SORTED_LIMIT);
+            put(x, node);
+            return;
+        }
+        if (size == keys.length) {
+            int[] moreKeys = new int[Math.min(2 * size, SORTED_LIMIT)];
+            SuffixNode[] moreValues = new SuffixNode[moreKeys.length];
+            System.arraycopy(keys, 0, moreKeys, 0, size);
+            System.arraycopy(values, 0, moreValues, 0, size);
+            keys = moreKeys;
+            values = moreValues;
+        }
+        index = -(index + 1);
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        keys[index] = x;
+        values[index] = node;
+        size++;
+    }
+
+    /**
+     * @return the <code>num</code>th child in iteration order, or null
+     */
+    public SuffixNode getValue(int num) {
+        if (num < 0 || num >= size)
+            return null;
+        if (!hashed)
+            return values[num];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && num-- == 0)
+                return values[i];
+        }
+        return null;
+    }
+
+    /**
+     * Slots let a walk go through the children, in iteration order, without
+     * an iterator object: start from <code>nextSlot(0)</code> and go on with
+     * <code>nextSlot(slot + 1)</code>.
+     *
+     * @return the first slot at or after <code>slot</code> holding a child,
+     *         or -1 if there is none
+     */
+    public int nextSlot(int slot) {
+        if (hashed) {
+            while (slot < values.length && values[slot] == null)
+                slot++;
+            return (slot < values.length) ? slot : -1;
+        }
+        return (slot < size) ? slot : -1;
+    }
+
+    /**
+     * @return the child held by a slot returned by {@link #nextSlot}
+     */
+    public SuffixNode valueAt(int slot) {
+        return values[slot];
+    }
+
+    public Iterator<SuffixNode> iterator() {
+        return new Iterator<SuffixNode>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                if (hashed) {
+                    while (i < values.length && values[i] == null)
+                        i++;
+                    return i;
+                }
+                return (i < size) ? i : values.length;
+            }
+
+            public boolean hasNext() {
+                return next < values.length;
+            }
+
+            public SuffixNode next() {
+                if (next >= values.length)
+                    throw new NoSuchElementException();
+                SuffixNode node = values[next];
+                next = advance(next + 1);
+                return node;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // binary search of the sorted keys, same contract as
+    // Arrays.binarySearch
+    private int sortedIndexOf(int x) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < x)
+                low = mid + 1;
+            else if (keys[mid] > x)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private void rehash(int capacity) {
+        int[] newKeys = new int[capacity];
+        SuffixNode[] newValues = new SuffixNode[capacity];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && (hashed || i < size))
+                hashPut(newKeys, newValues, keys[i], values[i]);
+        }
+        keys = newKeys;
+        values = newValues;
+        hashed = true;
+    }
+
+    // returns true if the key was not in the table yet
+    private static boolean hashPut(int[] keys, SuffixNode[] values, int x,
+            SuffixNode node) {
+        int mask = keys.length - 1;
+        int i = hash(x) & mask;
+        while (values[i] != null) {
+            if (keys[i] == x) {
+                values[i] = node;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = x;
+        values[i] = node;
+        return true;
+    }
+
+    private static int hash(int x) {
+        int h = x * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,421 @@
+package com.doccluster.suffixtree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <code>PhraseIndex</code> saved to disk by {@link #write} and read back
+ * through a read-only memory map, so reopening it costs no parsing and no
+ * objects per node.
+ * <p>
+ * The file starts with a fingerprint of the coded documents and of the word
+ * list it was built from, and with the backend and the node pruning
+ * thresholds of the tree; {@link #open} returns null when any of them does
+ * not match, so a stale index gets rebuilt. The file stamp hashes the names,
+ * sizes and modification times of the coded documents instead of their
+ * contents, so that they are only read again when it does not match (an
+ * edit keeping both the size and the modification time of a document goes
+ * unnoticed). All values are big-endian:
+ *
+ * <pre>
+ *   int magic, int version, long fingerprint, long fileStamp,
+ *   int numOfDocs, int numOfWords, int numOfNodes,
+ *   int numOfEntries, int numOfLabelCodes,
+ *   int backend             index in BACKENDS
+ *   int minDocumentFrequency, float maxDocumentFrequencyRatio,
+ *   int minPhraseLength, int maxPhraseLength
+ *   float[numOfNodes]       node scores
+ *   int[numOfNodes + 1]     offset of the first entry of each node
+ *   int[numOfEntries]       documents of each node, in ascending order
+ *   short[numOfEntries]     occurrence counts, same order
+ *   int[numOfNodes + 1]     offset of the first label code of each node
+ *   int[numOfLabelCodes]    word codes of the path label of each node
+ * </pre>
+ *
+ * A single map is used, so the file is limited to 2 GB.
+ */
+public class MappedPhraseIndex implements PhraseIndex {
+
+    private static final int MAGIC = 0x50485258;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 64;
+
+    // the backends of WordSuffixTree, by their code in the header
+    private static final List<String> BACKENDS = Arrays.asList("suffixTree",
+            "suffixArray", "parallelSuffixArray");
+
+    private final String inputFolderLocation;
+
+    private final List<String> wordList;
+
+    private final MappedByteBuffer buffer;
+
+    // read from inputFolderLocation when first asked for
+    private CodedCorpus corpus;
+
+    private final int numOfDocs, numOfNodes;
+
+    // byte positions of the sections of the file
+    private final int entryOffsetsPos, docsPos, countsPos, labelOffsetsPos,
+            labelCodesPos;
+
+    private MappedPhraseIndex(MappedByteBuffer buffer,
+            String inputFolderLocation, List<String> wordList) {
+        this.buffer = buffer;
+        this.inputFolderLocation = inputFolderLocation;
+        this.wordList = wordList;
+        numOfDocs = buffer.getInt(24);
+        numOfNodes = buffer.getInt(32);
+        int numOfEntries = buffer.getInt(36);
+        entryOffsetsPos = HEADER_SIZE + 4 * numOfNodes;
+        docsPos = entryOffsetsPos + 4 * (numOfNodes + 1);
+        countsPos = docsPos + 4 * numOfEntries;
+        labelOffsetsPos = countsPos + 2 * numOfEntries;
+        labelCodesPos = labelOffsetsPos + 4 * (numOfNodes + 1);
+    }
+
+    /**
+     * Maps an index written by {@link #write}.
+     *
+     * @param indexFile
+     *            the index file
+     * @param inputFolderLocation
+     *            the folder of the coded documents, as in
+     *            <code>WordSuffixTree</code>
+     * @param wordList
+     *            the words of the codes
+     * @param backend
+     *            the backend the index has to be built with, as in
+     *            <code>WordSuffixTree</code>
+     * @param nodePruning
+     *            the thresholds the index has to be built with
+     * @return the index, or null if the file does not exist, cannot be read,
+     *         is not the size its header gives (e.g. its writing was cut
+     *         short), or was built from other documents or words, with
+     *         another backend or with other thresholds
+     */
+    public static MappedPhraseIndex open(String indexFile,
+            String inputFolderLocation, List<String> wordList, String backend,
+            NodePruning nodePruning) {
+        File file = new File(indexFile);
+        if (!file.exists())
+            return null;
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE
+                    || channel.size() > Integer.MAX_VALUE)
+                return null;
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getInt(44) != BACKENDS.indexOf(backend)
+                    || buffer.getInt(48) != nodePruning.minDocumentFrequency
+                    || buffer.getInt(52) != Float.floatToIntBits(
+                            nodePruning.maxDocumentFrequencyRatio)
+                    || buffer.getInt(56) != nodePruning.minPhraseLength
+                    || buffer.getInt(60) != nodePruning.maxPhraseLength)
+                return null;
+            // the header is written first, so a write cut short leaves a
+            // file shorter than the header says
+            int numOfNodes = buffer.getInt(32), numOfEntries = buffer
+                    .getInt(36), numOfLabelCodes = buffer.getInt(40);
+            if (numOfNodes < 0 || numOfEntries < 0 || numOfLabelCodes < 0
+                    || channel.size() != fileSize(numOfNodes, numOfEntries,
+                            numOfLabelCodes))
+                return null;
+            // the contents are only hashed when the files were touched, and
+            // if they did not change, the stamp is brought up to date so the
+            // next open does not hash them again
+            long stamp = fileStamp(inputFolderLocation, wordList);
+            if (buffer.getLong(16) != stamp) {
+                if (buffer.getLong(8) != fingerprint(inputFolderLocation,
+                        wordList))
+                    return null;
+                writeFileStamp(file, stamp);
+            }
+            // the map stays valid once the channel is closed
+            return new MappedPhraseIndex(buffer, inputFolderLocation, wordList);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the nodes of a tree (with its node document lists constructed)
+     * to an index file.
+     *
+     * @throws UnsupportedOperationException
+     *             if the index would be above 2 GB, before the file is
+     *             written
+     */
+    public static void write(WordSuffixTree wst, String indexFile) {
+        NodePruning nodePruning = wst.getNodePruning();
+        int numOfNodes = wst.numOfNodes();
+        long numOfEntries = 0, numOfLabelCodes = 0;
+        for (int i = 0; i < numOfNodes; i++) {
+            numOfEntries += wst.numOfNodeDocuments(i);
+            numOfLabelCodes += wst.getNodeLabelLength(i);
+        }
+        long fileSize = fileSize(numOfNodes, numOfEntries, numOfLabelCodes);
+        if (fileSize > Integer.MAX_VALUE)
+            throw new UnsupportedOperationException(
+                    "Phrase index of " + fileSize + " bytes is above 2 GB.\n");
+
+        DataOutputStream out = null;
+        try {
+            File file = new File(indexFile);
+            if (file.getParentFile() != null)
+                file.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint(wst.getInputFolderLocation(),
+                    wst.wordList));
+            out.writeLong(fileStamp(wst.getInputFolderLocation(),
+                    wst.wordList));
+            out.writeInt(wst.numOfDocs());
+            out.writeInt(wst.numOfWords());
+            out.writeInt(numOfNodes);
+            out.writeInt((int) numOfEntries);
+            out.writeInt((int) numOfLabelCodes);
+            out.writeInt(BACKENDS.indexOf(wst.getBackend()));
+            out.writeInt(nodePruning.minDocumentFrequency);
+            out.writeFloat(nodePruning.maxDocumentFrequencyRatio);
+            out.writeInt(nodePruning.minPhraseLength);
+            out.writeInt(nodePruning.maxPhraseLength);
+
+            for (int i = 0; i < numOfNodes; i++)
+                out.writeFloat(wst.getNodeScore(i));
+            int offset = 0;
+            for (int i = 0; i < numOfNodes; i++) {
+                out.writeInt(offset);
+                offset += wst.numOfNodeDocuments(i);
+            }
+            out.writeInt(offset);
+
+            // documents then counts, each node sorted by document
+            int[] docs = new int[wst.numOfDocs()];
+            short[] counts = new short[wst.numOfDocs()];
+            long[] entries = new long[wst.numOfDocs()];
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < numOfNodes; i++) {
+                    int num = wst.getNodeDocuments(i, docs, counts);
+                    for (int j = 0; j < num; j++)
+                        entries[j] = ((long) docs[j] << 16)
+                                | (counts[j] & 0xffff);
+                    Arrays.sort(entries, 0, num);
+                    for (int j = 0; j < num; j++) {
+                        if (pass == 0)
+                            out.writeInt((int) (entries[j] >>> 16));
+                        else
+                            out.writeShort((short) entries[j]);
+                    }
+                }
+            }
+
+            offset = 0;
+            for (int i = 0; i < numOfNodes; i++) {
+                out.writeInt(offset);
+                offset += wst.getNodeLabelLength(i);
+            }
+            out.writeInt(offset);
+            for (int i = 0; i < numOfNodes; i++) {
+                int[] codes = wst.getNodeLabelCodes(i);
+                for (int j = 0; j < codes.length; j++)
+                    out.writeInt(codes[j]);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // size of the file of an index of the given counts
+    private static long fileSize(int numOfNodes, long numOfEntries,
+            long numOfLabelCodes) {
+        return HEADER_SIZE + 4L * numOfNodes + 4L * (numOfNodes + 1) + 6L
+                * numOfEntries + 4L * (numOfNodes + 1) + 4L * numOfLabelCodes;
+    }
+
+    // rewrites the file stamp in the header of an index file; if it cannot
+    // be written, the contents are hashed again on the next open
+    private static void writeFileStamp(File file, long stamp) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.seek(16);
+            raf.writeLong(stamp);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } finally {
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Hashes the coded documents (folder and file names, and contents, in
+     * the order <code>WordSuffixTree</code> reads them) and the word list.
+     *
+     * @return the first 8 bytes of the SHA-1 digest
+     */
+    public static long fingerprint(String inputFolderLocation,
+            List<String> wordList) throws IOException {
+        return hash(inputFolderLocation, wordList, true);
+    }
+
+    /**
+     * Hashes the folder and file names, sizes and modification times of the
+     * coded documents, and the word list, without reading the documents.
+     *
+     * @return the first 8 bytes of the SHA-1 digest
+     */
+    public static long fileStamp(String inputFolderLocation,
+            List<String> wordList) throws IOException {
+        return hash(inputFolderLocation, wordList, false);
+    }
+
+    // hashes the names of the coded documents, then their contents or else
+    // their sizes and modification times, and the word list
+    private static long hash(String inputFolderLocation,
+            List<String> wordList, boolean contents) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        byte[] data = new byte[1 << 16];
+        File[] listOfFolders = new File(inputFolderLocation).listFiles();
+        if (listOfFolders == null)
+            throw new IOException("Cannot list " + inputFolderLocation);
+        for (int i = 0; i < listOfFolders.length; i++) {
+            digest.update(listOfFolders[i].getName().getBytes("UTF-8"));
+            File[] listOfFiles = listOfFolders[i].listFiles();
+            for (int j = 0; j < listOfFiles.length; j++) {
+                digest.update((byte) '/');
+                digest.update(listOfFiles[j].getName().getBytes("UTF-8"));
+                digest.update((byte) 0);
+                if (contents) {
+                    InputStream in = new FileInputStream(listOfFiles[j]);
+                    try {
+                        int length;
+                        while ((length = in.read(data)) > 0)
+                            digest.update(data, 0, length);
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    long size = listOfFiles[j].length();
+                    long modified = listOfFiles[j].lastModified();
+                    for (int k = 0; k < 8; k++) {
+                        data[k] = (byte) (size >>> (56 - 8 * k));
+                        data[8 + k] = (byte) (modified >>> (56 - 8 * k));
+                    }
+                    digest.update(data, 0, 16);
+                }
+                digest.update((byte) 0);
+            }
+            digest.update((byte) '\n');
+        }
+        for (String word : wordList) {
+            digest.update(word.getBytes("UTF-8"));
+            digest.update((byte) 0);
+        }
+
+        byte[] hash = digest.digest();
+        long fingerprint = 0;
+        for (int i = 0; i < 8; i++)
+            fingerprint = (fingerprint << 8) | (hash[i] & 0xff);
+        return fingerprint;
+    }
+
+    public int numOfDocs() {
+        return numOfDocs;
+    }
+
+    public int numOfWords() {
+        return wordList.size();
+    }
+
+    public String getInputFolderLocation() {
+        return inputFolderLocation;
+    }
+
+    public synchronized CodedCorpus getCodedCorpus() {
+        if (corpus == null)
+            corpus = CodedCorpus.read(inputFolderLocation);
+        return corpus;
+    }
+
+    public int numOfNodes() {
+        return numOfNodes;
+    }
+
+    public float getNodeScore(int node) {
+        return buffer.getFloat(HEADER_SIZE + 4 * node);
+    }
+
+    public int numOfNodeDocuments(int node) {
+        return buffer.getInt(entryOffsetsPos + 4 * (node + 1))
+                - buffer.getInt(entryOffsetsPos + 4 * node);
+    }
+
+    public int getNodeDocuments(int node, int[] docs, short[] counts) {
+        int from = buffer.getInt(entryOffsetsPos + 4 * node);
+        int to = buffer.getInt(entryOffsetsPos + 4 * (node + 1));
+        for (int j = from; j < to; j++) {
+            docs[j - from] = buffer.getInt(docsPos + 4 * j);
+            counts[j - from] = buffer.getShort(countsPos + 2 * j);
+        }
+        return to - from;
+    }
+
+    public CharSequence getNodePhrase(int node) {
+        int from = buffer.getInt(labelOffsetsPos + 4 * node);
+        int to = buffer.getInt(labelOffsetsPos + 4 * (node + 1));
+        StringBuilder builder = new StringBuilder();
+        for (int j = from; j < to; j++)
+            builder.append(wordList.get(buffer.getInt(labelCodesPos + 4 * j))
+                    + " ");
+        return builder.toString().trim();
+    }
+}
@@ -0,0 +1,74 @@
+package com.doccluster.suffixtree;
+
+/**
+ * Thresholds deciding which internal nodes make it into the node document
+ * lists. They are applied while the nodes are counted, so pruned nodes cost
+ * no list entry, and nodes known to be pruned together with all their
+ * ancestors are not counted at all.
+ * <p>
+ * Phrase lengths are in words (symbols), the same length
+ * <code>calcWeightedWordCount</code> scores. The defaults, {@link #NONE},
+ * keep every node shared by two documents or more.
+ */
+public class NodePruning {
+
+    public static final NodePruning NONE = new NodePruning(2, 1, 1,
+            Integer.MAX_VALUE);
+
+    // a node is kept if it is shared by at least minDocumentFrequency
+    // documents, and by at most maxDocumentFrequencyRatio of all documents
+    public final int minDocumentFrequency;
+
+    public final float maxDocumentFrequencyRatio;
+
+    // a node is kept if its label has minPhraseLength to maxPhraseLength
+    // words
+    public final int minPhraseLength, maxPhraseLength;
+
+    public NodePruning(int minDocumentFrequency,
+            float maxDocumentFrequencyRatio, int minPhraseLength,
+            int maxPhraseLength) {
+        if (minDocumentFrequency < 2)
+            throw new IllegalArgumentException(
+                    "Nodes must be shared by at least 2 documents, not "
+                            + minDocumentFrequency);
+        if (!(maxDocumentFrequencyRatio > 0))
+            throw new IllegalArgumentException(
+                    "Maximum document frequency ratio must be positive, not "
+                            + maxDocumentFrequencyRatio);
+        if (minPhraseLength < 1 || maxPhraseLength < minPhraseLength)
+            throw new IllegalArgumentException("Bad phrase length range "
+                    + minPhraseLength + " to " + maxPhraseLength);
+        this.minDocumentFrequency = minDocumentFrequency;
+        this.maxDocumentFrequencyRatio = maxDocumentFrequencyRatio;
+        this.minPhraseLength = minPhraseLength;
+        this.maxPhraseLength = maxPhraseLength;
+    }
+
+    /**
+     * @return the largest number of documents a kept node can be shared by
+     */
+    public int maxDocumentFrequency(int numOfDocs) {
+        return (maxDocumentFrequencyRatio >= 1) ? numOfDocs : (int) Math
+                .floor(maxDocumentFrequencyRatio * numOfDocs);
+    }
+
+    /**
+     * @return true if a node with a label of that many words can be kept
+     */
+    public boolean isListable(int phraseLength) {
+        return phraseLength >= minPhraseLength
+                && phraseLength <= maxPhraseLength;
+    }
+
+    /**
+     * @return true if a node with a label of that many words, shared by
+     *         that many documents out of numOfDocs, is kept
+     */
+    public boolean isKept(int phraseLength, int documentFrequency,
+            int numOfDocs) {
+        return isListable(phraseLength)
+                && documentFrequency >= minDocumentFrequency
+                && documentFrequency <= maxDocumentFrequency(numOfDocs);
+    }
+}
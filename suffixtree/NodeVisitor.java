@@ -0,0 +1,24 @@
+package com.doccluster.suffixtree;
+
+/**
+ * Callbacks of a depth-first walk of the nodes of a suffix tree, see
+ * {@link UkkonenSuffixTree#visitNodes}.
+ */
+public interface NodeVisitor {
+
+    /**
+     * Called when the walk reaches a node, before its children.
+     *
+     * @param depth
+     *            the number of edges between the node and the node the walk
+     *            started from
+     * @return false to skip the children of the node; its postVisit is still
+     *         called
+     */
+    boolean preVisit(SuffixNode node, int depth);
+
+    /**
+     * Called once the children of a node have all been visited.
+     */
+    void postVisit(SuffixNode node, int depth);
+}
@@ -0,0 +1,65 @@
+package com.doccluster.suffixtree;
+
+/**
+ * Read access to the phrases (internal suffix tree nodes) shared by two
+ * documents or more, as used by the similarity and clustering algorithms.
+ * Nodes are numbered from 0 in the order of
+ * {@link UkkonenSuffixTree#nodeDocumentList}.
+ */
+public interface PhraseIndex {
+
+    /**
+     * @return the number of documents indexed
+     */
+    int numOfDocs();
+
+    /**
+     * @return the number of unique words of the corpus
+     */
+    int numOfWords();
+
+    /**
+     * @return the folder of the coded documents the index was built from
+     */
+    String getInputFolderLocation();
+
+    /**
+     * @return the coded documents the index was built from, numbered as in
+     *         the node document lists
+     */
+    CodedCorpus getCodedCorpus();
+
+    /**
+     * @return the number of nodes
+     */
+    int numOfNodes();
+
+    /**
+     * @return the cluster score of a node
+     */
+    float getNodeScore(int node);
+
+    /**
+     * @return the number of documents sharing a node, i.e. its document
+     *         frequency
+     */
+    int numOfNodeDocuments(int node);
+
+    /**
+     * Copies the documents sharing a node, and the number of occurrences of
+     * the node label in each of them.
+     *
+     * @param docs
+     *            receives the document numbers, counting from 0; must hold
+     *            <code>numOfNodeDocuments(node)</code> entries
+     * @param counts
+     *            receives the occurrence counts, in the same order
+     * @return the number of documents copied
+     */
+    int getNodeDocuments(int node, int[] docs, short[] counts);
+
+    /**
+     * @return the words of the path label of a node
+     */
+    CharSequence getNodePhrase(int node);
+}
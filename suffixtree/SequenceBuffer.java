@@ -0,0 +1,119 @@
+package com.doccluster.suffixtree;
+
+/**
+ * Append-only buffer holding the concatenated sequences of a suffix tree.
+ * <p>
+ * Symbols are kept as ints, so the same buffer holds char sequences, word
+ * code sequences of any vocabulary size and negative sequence terminators.
+ * Appending copies only the new symbols (the backing array doubles when
+ * full), so adding many sequences is linear in their total length.
+ */
+public class SequenceBuffer {
+
+    private int[] data;
+
+    private int length;
+
+    /**
+     * Creates an empty buffer
+     */
+    public SequenceBuffer() {
+        this(1024);
+    }
+
+    /**
+     * Creates an empty buffer
+     *
+     * @param capacity
+     *            the initial number of symbols the buffer can hold
+     */
+    public SequenceBuffer(int capacity) {
+        data = new int[Math.max(capacity, 16)];
+        length = 0;
+    }
+
+    /**
+     * Appends the characters of a sequence to the end of the buffer.
+     *
+     * @param seq
+     *            the characters to append
+     */
+    public void append(CharSequence seq) {
+        int seqLength = seq.length();
+        ensureCapacity(length + seqLength);
+        for (int i = 0; i < seqLength; i++)
+            data[length + i] = seq.charAt(i);
+        length += seqLength;
+    }
+
+    /**
+     * Appends <code>codes[from]</code> to <code>codes[to - 1]</code> to the
+     * end of the buffer.
+     */
+    public void append(int[] codes, int from, int to) {
+        ensureCapacity(length + to - from);
+        System.arraycopy(codes, from, data, length, to - from);
+        length += to - from;
+    }
+
+    /**
+     * Appends a single symbol to the end of the buffer.
+     */
+    public void append(int code) {
+        ensureCapacity(length + 1);
+        data[length++] = code;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            int[] moreData = new int[Math.max(capacity, data.length * 2)];
+            System.arraycopy(data, 0, moreData, 0, length);
+            data = moreData;
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int codeAt(int index) {
+        if (index >= length)
+            throw new IndexOutOfBoundsException("index " + index
+                    + ", length " + length);
+        return data[index];
+    }
+
+    /**
+     * @return a copy of the symbols from <code>start</code> (inclusive) to
+     *         <code>end</code> (exclusive)
+     */
+    public int[] codes(int start, int end) {
+        checkRange(start, end);
+        int[] codes = new int[end - start];
+        System.arraycopy(data, start, codes, 0, end - start);
+        return codes;
+    }
+
+    /**
+     * @return the symbols from <code>start</code> (inclusive) to
+     *         <code>end</code> (exclusive) as characters. Only meaningful for
+     *         sequences added as chars.
+     */
+    public String subSequence(int start, int end) {
+        checkRange(start, end);
+        StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++)
+            builder.append((char) data[i]);
+        return builder.toString();
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("start " + start + ", end "
+                    + end + ", length " + length);
+    }
+
+    public String toString() {
+        return subSequence(0, length);
+    }
+}
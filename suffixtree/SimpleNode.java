@@ -1,8 +1,5 @@
 package com.doccluster.suffixtree;
 
-import java.util.HashMap;
-import java.util.Iterator;
-
 /**
  * Node Class for the suffix tree
  * 
@@ -23,7 +20,7 @@ public class SimpleNode extends SuffixNode implements TreeNode {
         suffixLink = null;
         labelStart = 0;
         labelEnd = 0;
-        children = new HashMap<Character, SuffixNode>();
+        children = new IntNodeMap();
         additionalLabels = null;
         textNumber = 0;
         suffixIndex = 0;
@@ -77,7 +74,7 @@ public class SimpleNode extends SuffixNode implements TreeNode {
     }
 
     public SuffixNode getChild(Character x) {
-        return (children == null) ? null : children.get(x);
+        return (children == null) ? null : children.get(x.charValue());
     }
 
     public SuffixNode getParent() {
@@ -85,18 +82,10 @@ public class SimpleNode extends SuffixNode implements TreeNode {
     }
 
     public int numChildren() {
-        return children == null ? 0 : children.keySet().size();
+        return children == null ? 0 : children.size();
     }
 
     public TreeNode getChild(int num) {
-        Iterator<Character> iter = children.keySet().iterator();
-        int i = 0;
-        while (iter.hasNext()) {
-            TreeNode node = (TreeNode) children.get(iter.next());
-            if (i == num)
-                return node;
-            i++;
-        }
-        return null;
+        return (children == null) ? null : (TreeNode) children.getValue(num);
     }
 }
\ No newline at end of file
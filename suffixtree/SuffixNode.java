@@ -1,7 +1,5 @@
 package com.doccluster.suffixtree;
 
-import java.util.HashMap;
-
 /**
  * Abstract superclass for tree nodes
  */
@@ -16,7 +14,7 @@ public abstract class SuffixNode {
 
     protected int labelStart, labelEnd;
 
-    protected HashMap<Character, SuffixNode> children;
+    protected IntNodeMap children;
 
     protected int[] additionalLabels;
 
@@ -66,9 +64,10 @@ public abstract class SuffixNode {
     public abstract SuffixNode getParent();
 
     /**
-     * @return Returns the children
+     * @return Returns the children, keyed by the first symbol of their
+     *         edge
      */
-    public HashMap<Character, SuffixNode> getChildren() {
+    public IntNodeMap getChildren() {
         return children;
     }
 
@@ -1,7 +1,11 @@
 package com.doccluster.suffixtree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -13,7 +17,7 @@ public class UkkonenSuffixTree {
     SuffixNode root;
     public static final int TO_A_LEAF = -1;
     private int e;
-    private CharSequence sequences;
+    protected SequenceBuffer sequences;
     
     //A list to store the frequency of documents traversing
     //each internal node
@@ -22,6 +26,36 @@ public class UkkonenSuffixTree {
     //A list to store the cluster score of each internal node
     public List<Float> nodeDocumentListScores;
     
+    //Path label (start in sequences and number of symbols) of each node
+    //in nodeDocumentList
+    private int[] nodeLabelStarts, nodeLabelLengths;
+    
+    //Node of each entry of nodeDocumentList, and the reverse mapping (built
+    //on the first update), kept so the lists can be updated in place
+    private ArrayList<SuffixNode> nodeDocumentListNodes;
+    private IdentityHashMap<SuffixNode, Integer> nodeDocumentListIndex;
+    
+    //Leaf and position of every suffix added since the node document lists
+    //were constructed or updated; null until they are constructed
+    private ArrayList<SuffixNode> newOccurrenceLeaves;
+    private int[] newOccurrencePositions;
+    
+    //Thresholds on the nodes kept in nodeDocumentList
+    private NodePruning nodePruning = NodePruning.NONE;
+    
+    //Start position of each terminated sequence (document) in sequences,
+    //used to map a suffix position back to its document number
+    private int[] sequenceStarts;
+    private int numOfSequences;
+    
+    //Leaves created by the sequence being added. Their labelEnd is still
+    //TO_A_LEAF and is fixed by finishAddition once the sequence is done
+    private ArrayList<SuffixNode> openLeaves;
+    
+    //Struct-of-arrays copy of the nodes, set by compactNodes(). Once it is
+    //set the node objects are released and root is null
+    protected CompactNodeStore compactNodes;
+    
     /**
      * Describes the rule that needs to be applied after walking down a tree.
      * Put as a class variable because it can only return a single object (and I
@@ -41,9 +75,12 @@ public class UkkonenSuffixTree {
         terminationChar = DEFAULT_TERM_CHAR;
         root = new SimpleNode();
         e = 0;
-        sequences = "";
+        sequences = new SequenceBuffer();
         nodeDocumentList = new ArrayList<Map<Integer, Short>>();
         nodeDocumentListScores = new ArrayList<Float>();
+        sequenceStarts = new int[16];
+        numOfSequences = 0;
+        openLeaves = new ArrayList<SuffixNode>();
     }
 
     /**
@@ -79,6 +116,7 @@ public class UkkonenSuffixTree {
 
         if (seq == null || seq.length() == 0)
             return;
+        checkNotCompacted();
 
         // terminate the String if it's not terminated.
         if (!doNotTerminate && seq.charAt(seq.length() - 1) != terminationChar)
@@ -102,26 +140,76 @@ public class UkkonenSuffixTree {
     }
 
     /**
-     * Add a single sequence into the tree.
+     * Add a sequence of word codes into the tree. The sequence is terminated
+     * by a sentinel of its own (a negative value that no other sequence uses),
+     * so codes are not limited to the char range and no code is reserved as
+     * a terminator.
+     * 
+     * @param codes
+     *            the word codes of the sequence, all of them non-negative
+     * @param number
+     *            The text number, for generalized trees
+     */
+    public void addSequence(int[] codes, int number) {
+        if (codes == null)
+            return;
+        checkNotCompacted();
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] < 0)
+                throw new IllegalArgumentException("Negative word code "
+                        + codes[i] + " at position " + i);
+        }
+
+        int start = startSequence();
+        sequences.append(codes, 0, codes.length);
+        sequences.append(-numOfSequences);
+        addPreppedSequence(start, number);
+    }
+
+    /**
+     * Add a single terminated sequence into the tree.
      * 
      * @param seq
      *            a <code>String</code> value
      * @param number
      */
     private void addPreppedSequence(CharSequence seq, int number) {
+        int start = startSequence();
+        sequences.append(seq);
+        addPreppedSequence(start, number);
+    }
+
+    // records the start of a new sequence at the end of sequences
+    private int startSequence() {
+        if (numOfSequences == sequenceStarts.length) {
+            int[] moreStarts = new int[sequenceStarts.length * 2];
+            System.arraycopy(sequenceStarts, 0, moreStarts, 0, numOfSequences);
+            sequenceStarts = moreStarts;
+        }
+        sequenceStarts[numOfSequences++] = sequences.length();
+        return sequences.length();
+    }
+
+    /**
+     * Add the sequence that was appended to sequences at <code>start</code>
+     * into the tree.
+     * 
+     * @param start
+     *            the position of the sequence in sequences
+     * @param number
+     */
+    private void addPreppedSequence(int start, int number) {
         int i, gammaStart;
         int j = 0;
         SuffixNode oldNode = null, newNode;
         SuffixNode currentNode;
         boolean canLinkJump = false;
 
-        // Puts i at the end of the previous sequences
-        i = sequences.length();
+        // Puts i at the start of the new sequence
+        i = start;
         int k = i;
         j = i;
 
-        sequences = sequences.toString() + seq.toString();
-
         currentNode = root;
 
         // phase i
@@ -176,7 +264,11 @@ public class UkkonenSuffixTree {
                 oldNode = newNode;
                 newNode = null;
 
-                if (rule == 1 || rule == 4 || rule == 5) {
+                // rule 1 only happens on the terminating character, when the
+                // suffix is already a leaf of an earlier sequence. The shorter
+                // suffixes still need their positions added, so the phase
+                // goes on.
+                if (rule == 4 || rule == 5) {
                     oldNode = null;
                     canLinkJump = false;
                     break;
@@ -217,13 +309,13 @@ public class UkkonenSuffixTree {
             int to) {
         SuffixNode currentNode;
         SuffixNode arrivedAt;
-        CharSequence edgeLabel;
+        int edgeStart, edgeLength;
 
+        checkNotCompacted();
         currentNode = starting;
         arrivedAt = starting;
         while (from < to) {
-            arrivedAt = (SuffixNode) currentNode.getChildren().get(
-                    new Character(source.charAt(from)));
+            arrivedAt = currentNode.getChildren().get(source.charAt(from));
             if (arrivedAt == null) {
                 from = to;
                 arrivedAt = currentNode;
@@ -231,24 +323,20 @@ public class UkkonenSuffixTree {
                 break;
             }
 
-            edgeLabel = getEdgeLabel(arrivedAt);
-            if (edgeLabel.length() >= to - from) {
-                if (edgeLabel.equals(source.substring(from, to))) {
-                    // rule 1 or 5,
-                    if (arrivedAt.isTerminal())
-                        rule = 1;
-                    else
-                        rule = 5;
-                }
-                if (edgeLabel.subSequence(0, to - from).equals(
-                        source.substring(from, to)))
+            edgeStart = getEdgeStart(arrivedAt);
+            edgeLength = getEdgeLength(arrivedAt);
+            if (edgeLength >= to - from) {
+                if (!matches(edgeStart, source, from, to))
+                    rule = 3;
+                else if (edgeLength > to - from)
                     rule = 4;
+                else if (arrivedAt.isTerminal())
+                    rule = 1;
                 else
-                    rule = 3;
+                    rule = 5;
                 from = to;
-            } else if (source.subSequence(from, from + edgeLabel.length())
-                    .equals(edgeLabel)) {
-                from += edgeLabel.length();
+            } else if (matches(edgeStart, source, from, from + edgeLength)) {
+                from += edgeLength;
                 currentNode = arrivedAt;
             }
 
@@ -262,6 +350,16 @@ public class UkkonenSuffixTree {
 
     }
 
+    // compares source.substring(from, to) with the symbols of sequences
+    // starting at position
+    private boolean matches(int position, String source, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (sequences.codeAt(position + i - from) != source.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Just like walkTo, but faster when used during tree construction, as it
      * assumes that a mismatch can only occurs with the last character of the
@@ -282,7 +380,7 @@ public class UkkonenSuffixTree {
      *         stopped inside an edge. (check the rule variable to see where it
      *         stopped).
      */
-    public SuffixNode jumpTo(SuffixNode starting, CharSequence source,
+    public SuffixNode jumpTo(SuffixNode starting, SequenceBuffer source,
             int from, int to) {
         SuffixNode currentNode;
         SuffixNode arrivedAt;
@@ -318,8 +416,7 @@ public class UkkonenSuffixTree {
                 // of times already.
             }
 
-            arrivedAt = (SuffixNode) currentNode.getChildren().get(
-                    new Character(source.charAt(from)));
+            arrivedAt = currentNode.getChildren().get(source.codeAt(from));
             if (arrivedAt == null) {
                 canGoDown = false;
                 arrivedAt = currentNode;
@@ -332,7 +429,7 @@ public class UkkonenSuffixTree {
                 // int before = currentNode.labelEnd + to - from + 1;
                 int after = getPathEnd(arrivedAt) - getEdgeLength(arrivedAt)
                         + to - from - 1;
-                if (sequences.charAt(after) == source.charAt(to - 1)) {
+                if (sequences.codeAt(after) == source.codeAt(to - 1)) {
                     if (getEdgeLength(arrivedAt) == to - from) {
                         if (arrivedAt.isTerminal())
                             rule = 1;
@@ -377,11 +474,18 @@ public class UkkonenSuffixTree {
     }
 
     public CharSequence getEdgeLabel(SuffixNode child) {
-        return sequences.subSequence(child.labelStart
-                + (getPathLength(child) - getEdgeLength(child)),
+        return sequences.subSequence(getEdgeStart(child),
                 (child.labelEnd == TO_A_LEAF) ? e : child.labelEnd);
     }
 
+    /**
+     * @return the position in the sequences where the edge coming down to
+     *         <code>child</code> starts
+     */
+    public int getEdgeStart(SuffixNode child) {
+        return child.labelStart + (getPathLength(child) - getEdgeLength(child));
+    }
+
     public int getPathLength(SuffixNode node) {
         return getPathEnd(node) - node.labelStart;
     }
@@ -399,85 +503,531 @@ public class UkkonenSuffixTree {
                     .toString();
     }
 
+    /**
+     * Label of a compacted node, the counterpart of
+     * <code>getLabel(SuffixNode)</code>.
+     */
+    public CharSequence getLabel(CompactNode node) {
+        CompactNodeStore store = node.getStore();
+        if (node.getId() == store.getRoot())
+            return "root";
+        else
+            return sequences.subSequence(store.getLabelStart(node.getId()),
+                    store.getLabelEnd(node.getId()));
+    }
+
+    /**
+     * Edge label of a compacted node, the counterpart of
+     * <code>getEdgeLabel(SuffixNode)</code>.
+     */
+    public CharSequence getEdgeLabel(CompactNode node) {
+        CompactNodeStore store = node.getStore();
+        int id = node.getId();
+        return sequences.subSequence(store.getLabelEnd(id)
+                - store.getEdgeLength(id), store.getLabelEnd(id));
+    }
+
+    /**
+     * Walks the subtree under <code>start</code> depth-first, calling the
+     * visitor on the way down and on the way back up of every node. The walk
+     * keeps its own stack, so deep trees do not overflow the call stack, and
+     * builds no list of the nodes. Children are visited in the iteration
+     * order of their <code>IntNodeMap</code>.
+     *
+     * @param leavesOnly
+     *            if true, the visitor is only called for the leaves
+     */
+    public void visitNodes(SuffixNode start, NodeVisitor visitor,
+            boolean leavesOnly) {
+        // the nodes whose children are being visited, and the slot of the
+        // next child of each
+        SuffixNode[] stackNodes = new SuffixNode[16];
+        int[] stackSlots = new int[16];
+        int top = -1;
+
+        SuffixNode node = start;
+        while (node != null) {
+            int depth = top + 1;
+            boolean visited = !leavesOnly || node.isTerminal();
+            boolean descend = !visited || visitor.preVisit(node, depth);
+            if (descend && !node.isTerminal()) {
+                if (++top == stackNodes.length) {
+                    stackNodes = Arrays.copyOf(stackNodes, 2 * top);
+                    stackSlots = Arrays.copyOf(stackSlots, 2 * top);
+                }
+                stackNodes[top] = node;
+                stackSlots[top] = node.getChildren().nextSlot(0);
+            } else if (visited)
+                visitor.postVisit(node, depth);
+
+            // going up until a node has a child left to visit
+            node = null;
+            while (top >= 0) {
+                int slot = stackSlots[top];
+                if (slot >= 0) {
+                    IntNodeMap children = stackNodes[top].getChildren();
+                    node = children.valueAt(slot);
+                    stackSlots[top] = children.nextSlot(slot + 1);
+                    break;
+                }
+                SuffixNode done = stackNodes[top];
+                stackNodes[top] = null;
+                if (!leavesOnly)
+                    visitor.postVisit(done, top);
+                top--;
+            }
+        }
+    }
+
+    /**
+     * @return the nodes of the subtree under <code>root</code>, in pre-order,
+     *         added to <code>list</code> (or to a new list if it is null)
+     */
     public ArrayList<SuffixNode> getAllNodes(SuffixNode root,
             ArrayList<SuffixNode> list, boolean leavesOnly) {
-        Iterator<SuffixNode> iterator;
         if (list == null)
             list = new ArrayList<SuffixNode>();
-        if (!leavesOnly || (leavesOnly && root.isTerminal()))
-            list.add(root);
-        if (!root.isTerminal()) {
-            iterator = root.getChildren().values().iterator();
-            while (iterator.hasNext())
-                list = getAllNodes((SuffixNode) iterator.next(), list,
-                        leavesOnly);
-        }
+        final ArrayList<SuffixNode> nodes = list;
+        visitNodes(root, new NodeVisitor() {
+            public boolean preVisit(SuffixNode node, int depth) {
+                nodes.add(node);
+                return true;
+            }
 
+            public void postVisit(SuffixNode node, int depth) {
+            }
+        }, leavesOnly);
         return list;
     }
 
     public void printTree() {
-        ArrayList<SuffixNode> allNodes = getAllNodes(root, null, false);
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < allNodes.size(); i++) {
-            SuffixNode node = (SuffixNode) allNodes.get(i);
-            if (node == root)
-                System.out.println("root");
-            else {
-                CharSequence thisLabel = getLabel(node);
-                CharSequence parentLabel = getLabel(node.parent);
-                builder.append("node " + i + " label: \t" + thisLabel
-                        + " attached to: \t" + parentLabel + "\n"); //+ " docList: " + node.documentList.toString() + "\n");
+        if (compactNodes != null) {
+            printCompactTree();
+            return;
+        }
+        final StringBuilder builder = new StringBuilder();
+        visitNodes(root, new NodeVisitor() {
+            private int i = 0;
+
+            public boolean preVisit(SuffixNode node, int depth) {
+                if (node == root)
+                    System.out.println("root");
+                else {
+                    CharSequence thisLabel = getLabel(node);
+                    CharSequence parentLabel = getLabel(node.parent);
+                    builder.append("node " + i + " label: \t" + thisLabel
+                            + " attached to: \t" + parentLabel + "\n");
+                }
+                i++;
+                return true;
             }
+
+            public void postVisit(SuffixNode node, int depth) {
+            }
+        }, false);
+        System.out.println(builder.toString());
+    }
+
+    private void printCompactTree() {
+        StringBuilder builder = new StringBuilder();
+        System.out.println("root");
+        for (int i = 1; i < compactNodes.size(); i++) {
+            CompactNode node = compactNodes.getNode(i);
+            builder.append("node " + i + " label: \t" + getLabel(node)
+                    + " attached to: \t" + getLabel(node.getParent()) + "\n");
         }
         System.out.println(builder.toString());
     }
     
+    //Sets the thresholds on the nodes kept by constructNodeDocumentList and
+    //updateNodeDocumentList; NodePruning.NONE (the default) keeps every node
+    //shared by two documents or more
+    public void setNodePruning (NodePruning nodePruning) {
+        this.nodePruning = nodePruning;
+    }
+    
+    public NodePruning getNodePruning () {
+        return this.nodePruning;
+    }
+    
     //The following function populates the nodeDocumentList and 
-    //nodeDocumentListScores lists
+    //nodeDocumentListScores lists.
+    //The document frequencies are gathered bottom-up: every leaf contributes
+    //one occurrence for its own suffix and one for each additional label, and
+    //each internal node sums the counts of its children. The lists keep the
+    //pre-order of the nodes, same as a getAllNodes walk, less the nodes
+    //dropped by the pruning thresholds (see setNodePruning).
     public void constructNodeDocumentList () {
-    	String[] fileData = sequences.toString().split("\\$");
-    	ArrayList<SuffixNode> allNodes = getAllNodes(root, null, false);
-        Map<Integer, Short> currDocList;
- 
-        for (int i = 0; i < allNodes.size(); i++) {
-            SuffixNode node = (SuffixNode) allNodes.get(i);
-            if (node != root && !node.isTerminal()) {
-            	currDocList = new HashMap<Integer, Short>();
-            	String nodeLabel = sequences.subSequence(node.labelStart,
-                        (node.labelEnd == TO_A_LEAF) ? e : node.labelEnd).toString();
-            	
-            	int countSum = 0;
-                for (int j = 0; j < fileData.length; j++) {
-                	short count = calcTokenCount(fileData[j] + "$", nodeLabel);
-                	if (count != 0)
-                		currDocList.put(j, count);
-                	countSum += count;
+        checkNotCompacted();
+        this.nodeDocumentList.clear();
+        this.nodeDocumentListScores.clear();
+        this.nodeLabelStarts = new int[16];
+        this.nodeLabelLengths = new int[16];
+        this.nodeDocumentListNodes = new ArrayList<SuffixNode>();
+        this.nodeDocumentListIndex = null;
+        this.newOccurrenceLeaves = new ArrayList<SuffixNode>();
+        this.newOccurrencePositions = new int[16];
+        
+        visitNodes(root, new NodeDocumentCounter(), false);
+        
+        //dropping the slots of the pruned nodes
+        int size = 0;
+        for (int i = 0; i < this.nodeDocumentList.size(); i++) {
+            if (this.nodeDocumentList.get(i) != null) {
+                this.nodeDocumentList.set(size, this.nodeDocumentList.get(i));
+                this.nodeDocumentListScores.set(size, this.nodeDocumentListScores.get(i));
+                this.nodeLabelStarts[size] = this.nodeLabelStarts[i];
+                this.nodeLabelLengths[size] = this.nodeLabelLengths[i];
+                this.nodeDocumentListNodes.set(size, this.nodeDocumentListNodes.get(i));
+                size++;
+            }
+        }
+        this.nodeDocumentList.subList(size, this.nodeDocumentList.size()).clear();
+        this.nodeDocumentListScores.subList(size, this.nodeDocumentListScores.size()).clear();
+        this.nodeDocumentListNodes.subList(size, this.nodeDocumentListNodes.size()).clear();
+    }
+    
+    //Updates nodeDocumentList and nodeDocumentListScores for the sequences
+    //added since they were constructed or last updated, visiting only the
+    //nodes above the new suffixes. Nodes already in the lists get the new
+    //occurrences added to their counts. The other nodes above the new
+    //suffixes (new ones, or ones that were in a single document) are counted
+    //from their children, deepest first, and added at the end of the lists
+    //if the pruning now keeps them. Entries keep their index, so after an
+    //update the lists are no longer in pre-order, and entries already in the
+    //lists stay there even if they grow above the maximum document frequency:
+    //only constructNodeDocumentList applies that threshold exactly.
+    //Returns the indices of the entries that changed or were added, in
+    //ascending order.
+    public int[] updateNodeDocumentList () {
+        checkNotCompacted();
+        if (this.nodeDocumentListNodes == null) {
+            constructNodeDocumentList();
+            int[] allIndices = new int[this.nodeDocumentList.size()];
+            for (int i = 0; i < allIndices.length; i++)
+                allIndices[i] = i;
+            return allIndices;
+        }
+        if (this.nodeDocumentListIndex == null) {
+            this.nodeDocumentListIndex = new IdentityHashMap<SuffixNode, Integer>();
+            for (int i = 0; i < this.nodeDocumentListNodes.size(); i++)
+                this.nodeDocumentListIndex.put(this.nodeDocumentListNodes.get(i), i);
+        }
+        
+        BitSet changed = new BitSet();
+        //nodes above the new suffixes that are not in the lists yet
+        IdentityHashMap<SuffixNode, Map<Integer, Short>> recounted =
+            new IdentityHashMap<SuffixNode, Map<Integer, Short>>();
+        for (int i = 0; i < this.newOccurrenceLeaves.size(); i++) {
+            Integer docId = getSequenceNumber(this.newOccurrencePositions[i]);
+            SuffixNode node = this.newOccurrenceLeaves.get(i).parent;
+            for (; node != root; node = node.parent) {
+                Integer index = this.nodeDocumentListIndex.get(node);
+                if (index != null) {
+                    addDocumentCount(this.nodeDocumentList.get(index), docId, (short) 1);
+                    changed.set(index);
+                } else
+                    recounted.put(node, null);
+            }
+        }
+        this.newOccurrenceLeaves.clear();
+        
+        SuffixNode[] nodes = recounted.keySet().toArray(new SuffixNode[recounted.size()]);
+        Arrays.sort(nodes, new Comparator<SuffixNode>() {
+            public int compare(SuffixNode x, SuffixNode y) {
+                return getPathLength(y) - getPathLength(x);
+            }
+        });
+        for (int i = 0; i < nodes.length; i++) {
+            //labels too short to be kept are not counted, as the labels
+            //above them are shorter still
+            int pathLength = getPathLength(nodes[i]);
+            Map<Integer, Short> currDocList = new HashMap<Integer, Short>();
+            if (pathLength >= this.nodePruning.minPhraseLength) {
+                for (SuffixNode child : nodes[i].getChildren())
+                    addSubtreeCounts(currDocList, child, recounted);
+            }
+            recounted.put(nodes[i], currDocList);
+            
+            if (this.nodePruning.isKept(pathLength, currDocList.size(), this.numOfSequences)) {
+                int index = this.nodeDocumentList.size();
+                this.nodeDocumentList.add(currDocList);
+                this.nodeDocumentListScores.add(null);
+                this.nodeDocumentListNodes.add(nodes[i]);
+                this.nodeDocumentListIndex.put(nodes[i], index);
+                if (index == this.nodeLabelStarts.length) {
+                    this.nodeLabelStarts = Arrays.copyOf(this.nodeLabelStarts, 2 * index);
+                    this.nodeLabelLengths = Arrays.copyOf(this.nodeLabelLengths, 2 * index);
                 }
+                this.nodeLabelStarts[index] = nodes[i].labelStart;
+                this.nodeLabelLengths[index] = pathLength;
+                changed.set(index);
+            }
+        }
+        
+        int[] changedIndices = new int[changed.cardinality()];
+        int k = 0;
+        for (int index = changed.nextSetBit(0); index >= 0; index = changed.nextSetBit(index + 1)) {
+            int countSum = 0;
+            for (Short count : this.nodeDocumentList.get(index).values())
+                countSum += count;
+            this.nodeDocumentListScores.set(index, (float) (countSum * calcWeightedWordCount(this.nodeLabelLengths[index])));
+            changedIndices[k++] = index;
+        }
+        return changedIndices;
+    }
+    
+    //Adds the occurrence counts of the subtree under "node" to "docList",
+    //taking them from the lists or from "recounted" when they are there
+    private void addSubtreeCounts (final Map<Integer, Short> docList, SuffixNode node,
+            final IdentityHashMap<SuffixNode, Map<Integer, Short>> recounted) {
+        visitNodes(node, new NodeVisitor() {
+            public boolean preVisit(SuffixNode node, int depth) {
+                Map<Integer, Short> nodeDocList = recounted.get(node);
+                Integer index = nodeDocumentListIndex.get(node);
+                if (nodeDocList == null && index != null)
+                    nodeDocList = nodeDocumentList.get(index);
                 
-                if (currDocList.keySet().size() >= 2) {
-                	this.nodeDocumentList.add(currDocList);
-                	this.nodeDocumentListScores.add((float) (countSum * calcWeightedWordCount(nodeLabel.length())));
+                if (nodeDocList != null) {
+                    for (Map.Entry<Integer, Short> entry : nodeDocList.entrySet())
+                        addDocumentCount(docList, entry.getKey(), entry.getValue());
+                    return false;
+                }
+                if (node.isTerminal()) {
+                    addDocumentCount(docList, getSequenceNumber(node.labelStart), (short) 1);
+                    if (node.additionalLabels != null) {
+                        for (int i = 0; i < node.additionalLabels.length; i++)
+                            addDocumentCount(docList, getSequenceNumber(node.additionalLabels[i]), (short) 1);
+                    }
+                }
+                //not in the lists and no new suffix under it: the subtree is
+                //within a single document, unless the node was pruned
+                return true;
+            }
+            
+            public void postVisit(SuffixNode node, int depth) {
+            }
+        }, false);
+    }
+    
+    //Records a suffix added after the node document lists were constructed
+    private void addNewOccurrence (SuffixNode leaf, int position) {
+        if (this.newOccurrenceLeaves == null)
+            return;
+        int i = this.newOccurrenceLeaves.size();
+        if (i == this.newOccurrencePositions.length)
+            this.newOccurrencePositions = Arrays.copyOf(this.newOccurrencePositions, 2 * i);
+        this.newOccurrenceLeaves.add(leaf);
+        this.newOccurrencePositions[i] = position;
+    }
+    
+    //Counts the per document occurrences of the path label of every node,
+    //bottom-up: every leaf contributes one occurrence for its own suffix and
+    //one for each additional label, and each internal node adds up the
+    //counts of its children. Internal nodes reserve their slot in the lists
+    //on the way down so the pre-order is kept, and fill it in on the way
+    //back up if the pruning keeps them.
+    private class NodeDocumentCounter implements NodeVisitor {
+        
+        private final DocumentCountStack stack =
+            new DocumentCountStack(nodePruning.minPhraseLength);
+        
+        private final int maxDocumentFrequency =
+            nodePruning.maxDocumentFrequency(numOfSequences);
+        
+        public boolean preVisit (SuffixNode node, int depth) {
+            if (node.isTerminal())
+                return true;
+            int pathLength = (node == root) ? 0 : getPathLength(node);
+            int slot = -1;
+            if (node != root && nodePruning.isListable(pathLength)) {
+                slot = nodeDocumentList.size();
+                nodeDocumentList.add(null);
+                nodeDocumentListScores.add(null);
+                if (slot == nodeLabelStarts.length) {
+                    nodeLabelStarts = Arrays.copyOf(nodeLabelStarts, 2 * slot);
+                    nodeLabelLengths = Arrays.copyOf(nodeLabelLengths, 2 * slot);
                 }
+                nodeLabelStarts[slot] = node.labelStart;
+                nodeLabelLengths[slot] = pathLength;
+                nodeDocumentListNodes.add(node);
             }
+            this.stack.push(pathLength, slot);
+            return true;
         }
+        
+        public void postVisit (SuffixNode node, int depth) {
+            if (node.isTerminal()) {
+                this.stack.addCount(getSequenceNumber(node.labelStart), (short) 1);
+                if (node.additionalLabels != null) {
+                    for (int i = 0; i < node.additionalLabels.length; i++)
+                        this.stack.addCount(getSequenceNumber(node.additionalLabels[i]), (short) 1);
+                }
+                return;
+            }
+            
+            int pathLength = this.stack.pathLength();
+            int slot = this.stack.tag();
+            int df = this.stack.documentFrequency();
+            boolean tooFrequent = this.stack.isTooFrequent() || df > this.maxDocumentFrequency;
+            Map<Integer, Short> docList = this.stack.docList();
+            int singleDoc = this.stack.singleDoc();
+            short singleCount = this.stack.singleCount();
+            this.stack.pop();
+            
+            boolean kept = slot != -1 && !tooFrequent && df >= nodePruning.minDocumentFrequency;
+            if (kept) {
+                int countSum = 0;
+                for (Short count : docList.values())
+                    countSum += count;
+                nodeDocumentList.set(slot, docList);
+                nodeDocumentListScores.set(slot, (float) (countSum * calcWeightedWordCount(pathLength)));
+            }
+            
+            if (this.stack.isEmpty())
+                return;
+            if (tooFrequent)
+                this.stack.setTooFrequent();
+            else if (docList != null)
+                this.stack.addDocList(docList, !kept);
+            else if (singleDoc != -1)
+                this.stack.addCount(singleDoc, singleCount);
+        }
+    }
+    
+    //Start in sequences of the path label of node "node" of nodeDocumentList
+    public int getNodeLabelStart (int node) {
+        return this.nodeLabelStarts[node];
     }
     
-    //Utility function to calculate the frequency of "str" in "token"
-    private short calcTokenCount (final String str, final String token) {
+    //Number of symbols in the path label of node "node" of nodeDocumentList
+    public int getNodeLabelLength (int node) {
+        return this.nodeLabelLengths[node];
+    }
+    
+    //Utility function to add "count" occurrences of document "docId"
+    static void addDocumentCount (Map<Integer, Short> docList, Integer docId, short count) {
+        Short value = docList.get(docId);
+        docList.put(docId, (short) ((value == null) ? count : (value + count)));
+    }
+    
+    //Utility function to find the document (counting from 0) that
+    //the suffix starting at "position" belongs to
+    private int getSequenceNumber (int position) {
+        int low = 0, high = numOfSequences - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (sequenceStarts[mid] <= position)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+    
+    //Correctness check of the node document lists against the substring
+    //scan they replaced, with the same pruning thresholds (see
+    //setNodePruning). The lists are compared by phrase, whatever their
+    //order, so the check also holds after updateNodeDocumentList, but for
+    //the entries an update keeps above the maximum document frequency.
+    //It scans every document once per internal node, so it is only meant
+    //for small corpora.
+    public boolean checkNodeDocumentList () {
+        checkNotCompacted();
+        List<Map<Integer, Short>> scanDocList = new ArrayList<Map<Integer, Short>>();
+        List<Float> scanScores = new ArrayList<Float>();
+        List<String> scanPhrases = new ArrayList<String>();
+        scanNodeDocumentList(scanDocList, scanScores, scanPhrases);
+        
+        Map<String, Integer> indices = new HashMap<String, Integer>();
+        for (int i = 0; i < this.nodeDocumentList.size(); i++) {
+            String phrase = getPhraseKey(this.nodeLabelStarts[i], this.nodeLabelLengths[i]);
+            if (indices.put(phrase, i) != null) {
+                System.out.println("Phrase listed twice: " + phrase);
+                return false;
+            }
+        }
+        if (scanDocList.size() != this.nodeDocumentList.size()) {
+            System.out.println("Node count mismatch: " + this.nodeDocumentList.size() +
+                    " (expected " + scanDocList.size() + ")");
+            return false;
+        }
+        for (int i = 0; i < scanDocList.size(); i++) {
+            Integer index = indices.get(scanPhrases.get(i));
+            if (index == null) {
+                System.out.println("Phrase missing: " + scanPhrases.get(i));
+                return false;
+            }
+            if (!scanDocList.get(i).equals(this.nodeDocumentList.get(index)) ||
+                    !scanScores.get(i).equals(this.nodeDocumentListScores.get(index))) {
+                System.out.println("Phrase " + scanPhrases.get(i) + " mismatch: " +
+                        this.nodeDocumentList.get(index) + " (expected " + scanDocList.get(i) + ")");
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    //The codes of the "length" symbols at "start", as a key for the phrase
+    private String getPhraseKey (int start, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int k = 0; k < length; k++)
+            builder.append(sequences.codeAt(start + k)).append(' ');
+        return builder.toString();
+    }
+    
+    //Populates the given lists by counting every internal node label
+    //in every document (terminator included), keeping the nodes the
+    //pruning thresholds keep
+    private void scanNodeDocumentList (final List<Map<Integer, Short>> docLists, final List<Float> scores,
+            final List<String> phrases) {
+        visitNodes(root, new NodeVisitor() {
+            public boolean preVisit(SuffixNode node, int depth) {
+                if (node != root && !node.isTerminal()) {
+                	Map<Integer, Short> currDocList = new HashMap<Integer, Short>();
+                	int labelLength = getPathLength(node);
+                	
+                	int countSum = 0;
+                    for (int j = 0; j < numOfSequences; j++) {
+                    	int end = (j + 1 < numOfSequences) ? sequenceStarts[j + 1] : sequences.length();
+                    	short count = calcTokenCount(sequenceStarts[j], end, node.labelStart, labelLength);
+                    	if (count != 0)
+                    		currDocList.put(j, count);
+                    	countSum += count;
+                    }
+                    
+                    if (nodePruning.isKept(labelLength, currDocList.size(), numOfSequences)) {
+                    	docLists.add(currDocList);
+                    	scores.add((float) (countSum * calcWeightedWordCount(labelLength)));
+                    	phrases.add(getPhraseKey(node.labelStart, labelLength));
+                    }
+                }
+                return true;
+            }
+            
+            public void postVisit(SuffixNode node, int depth) {
+            }
+        }, false);
+    }
+    
+    //Utility function to calculate the frequency of the "length" symbols at
+    //"token" in the sequences between "start" and "end"
+    private short calcTokenCount (int start, int end, int token, int length) {
         short count = 0;
-        int idx = 0;
 
-        while ((idx = str.indexOf(token, idx)) != -1) {
-           idx++;
-           count++;
+        for (int idx = start; idx + length <= end; idx++) {
+            int k = 0;
+            while (k < length && sequences.codeAt(idx + k) == sequences.codeAt(token + k))
+                k++;
+            if (k == length)
+                count++;
         }
 
         return count;
     }
     
     //Function calculate the weighted word count
-    private double calcWeightedWordCount (int wordCount) {
+    static double calcWeightedWordCount (int wordCount) {
     	final double singleWordPenalty = 0.5;
     	final double moreThanSixWordsScore = 10;
     	
@@ -493,6 +1043,41 @@ public class UkkonenSuffixTree {
         return root;
     }
 
+    /**
+     * Replaces the node objects of the tree by a struct-of-arrays copy (see
+     * {@link CompactNodeStore}). The tree can still be printed and exported
+     * afterwards, but no sequence can be added and it cannot be walked
+     * through <code>SuffixNode</code>s any more, so the node document lists
+     * should be constructed first, and documents cannot be added with
+     * <code>WordSuffixTree.addDocuments</code>. The tree is still built out
+     * of node objects, so this lowers the heap it holds afterwards, not the
+     * peak heap of the construction.
+     */
+    public void compactNodes() {
+        if (compactNodes != null)
+            return;
+        compactNodes = new CompactNodeStore(root, sequences);
+        root = null;
+        openLeaves = null;
+        nodeDocumentListNodes = null;
+        nodeDocumentListIndex = null;
+        newOccurrenceLeaves = null;
+    }
+
+    /**
+     * @return the compacted nodes, or null if compactNodes() has not been
+     *         called
+     */
+    public CompactNodeStore getCompactNodes() {
+        return compactNodes;
+    }
+
+    private void checkNotCompacted() {
+        if (compactNodes != null)
+            throw new UnsupportedOperationException(
+                    "The nodes of this tree have been compacted.");
+    }
+
     /***************************************************************************
      * End Tree Navigation Methods
      **************************************************************************/
@@ -511,6 +1096,7 @@ public class UkkonenSuffixTree {
             moreLabels[moreLabels.length - 1] = pos;
             leaf.additionalLabels = moreLabels;
         }
+        addNewOccurrence(leaf, pos);
 
     }
 
@@ -518,9 +1104,10 @@ public class UkkonenSuffixTree {
             int number, int suffixIndex) {
         SuffixNode leaf = new SimpleNode(parent, suffixStart, number,
                 suffixIndex);
+        openLeaves.add(leaf);
+        addNewOccurrence(leaf, suffixStart);
 
-        parent.getChildren().put(new Character(sequences.charAt(splittingPos)),
-                leaf);
+        parent.getChildren().put(sequences.codeAt(splittingPos), leaf);
     }
 
     private SuffixNode doRule3(SuffixNode child, int splittingPos,
@@ -528,14 +1115,11 @@ public class UkkonenSuffixTree {
         SuffixNode parent = child.parent;
         SuffixNode middle = new SimpleNode(parent, suffixStart, splittingPos,
                 number, suffixIndex);
-        Character x = new Character(sequences.charAt(child.labelStart
-                + getPathLength(child) - getEdgeLength(child)));
+        int x = sequences.codeAt(getEdgeStart(child));
 
-        Character y = new Character(sequences.charAt(child.labelStart
-                + getPathLength(child) - getEdgeLength(child)
-                + getEdgeLength(middle)));
+        int y = sequences.codeAt(getEdgeStart(child) + getEdgeLength(middle));
 
-        parent.getChildren().remove(x);
+        // replaces child under x
         parent.getChildren().put(x, middle);
 
         middle.getChildren().put(y, child);
@@ -544,15 +1128,19 @@ public class UkkonenSuffixTree {
         return middle;
     }
 
+    /**
+     * Closes the leaves opened by the last added sequence. Leaves of earlier
+     * sequences are already closed, so only the new ones are visited instead
+     * of every leaf in the tree.
+     */
     private void finishAddition() {
         SuffixNode leaf;
-        ArrayList<SuffixNode> leaves = getAllNodes(root, null, true);
-        for (int i = 0; i < leaves.size(); i++) {
-            leaf = (SuffixNode) leaves.get(i);
+        for (int i = 0; i < openLeaves.size(); i++) {
+            leaf = openLeaves.get(i);
             if (leaf.labelEnd == TO_A_LEAF)
                 leaf.labelEnd = e;
         }
-
+        openLeaves.clear();
     }
 
     /***************************************************************************
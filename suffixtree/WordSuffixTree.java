@@ -1,87 +1,80 @@
 package com.doccluster.suffixtree;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
-public class WordSuffixTree extends UkkonenSuffixTree {
+public class WordSuffixTree extends UkkonenSuffixTree implements PhraseIndex {
 
 	public String inputFolderLocation;
 	public List<String> wordList;
 	public int numOfDocs;
 	
+	//the coded documents the tree was built from, with the documents added
+	//since
+	private CodedCorpus corpus;
+	
+	//Set when the node document lists come from a suffix array instead of
+	//the nodes of this tree
+	private GeneralizedSuffixArray suffixArray;
+	
+	//suffixTree, suffixArray or parallelSuffixArray
+	private final String backend;
+	
     public WordSuffixTree(String inputFolderLocation, List<String> wordList) {
-        this.inputFolderLocation = inputFolderLocation + "\\CodedData";
+        this(inputFolderLocation, wordList, "suffixTree");
+    }
+    
+    //argument "backend" tells whether the node document lists are built from
+    //the nodes of a suffixTree or from the LCP intervals of a suffixArray.
+    //Both give the same lists (up to the order of the nodes); with a
+    //suffixArray no node objects are created, so the tree itself stays empty.
+    //A parallelSuffixArray is a suffixArray built by document shards on the
+    //common fork-join pool
+    public WordSuffixTree(String inputFolderLocation, List<String> wordList, String backend) {
+        this(inputFolderLocation, wordList, backend, NodePruning.NONE);
+    }
+    
+    //argument "nodePruning" sets the thresholds on the nodes kept in the
+    //node document lists, see UkkonenSuffixTree.setNodePruning
+    public WordSuffixTree(String inputFolderLocation, List<String> wordList, String backend,
+            NodePruning nodePruning) {
+        this(CodedCorpus.read(inputFolderLocation + "\\CodedData"), wordList, backend, nodePruning);
+    }
+    
+    //Builds the tree from coded documents already read, which the
+    //similarity calculations then reuse (see getCodedCorpus)
+    public WordSuffixTree(CodedCorpus corpus, List<String> wordList, String backend,
+            NodePruning nodePruning) {
+        this.corpus = corpus;
+        this.inputFolderLocation = corpus.getFolderLocation();
         this.wordList = wordList;
+        this.backend = backend;
         
-        if (wordList.size() > 65535) {
-            throw new UnsupportedOperationException(
-                    "Current implementation does not allow for Texts \n" +
-                    "with a number of unique words above 65535.");
-        }
-        else 
-        	constructTree();
+        if (backend.equals("suffixArray"))
+        	this.suffixArray = new GeneralizedSuffixArray();
+        else if (backend.equals("parallelSuffixArray"))
+        	this.suffixArray = new GeneralizedSuffixArray(ForkJoinPool.commonPool());
+        else if (!backend.equals("suffixTree"))
+        	throw new UnsupportedOperationException("Unknown backend: " + backend + "\n");
+        setNodePruning(nodePruning);
+        
+        constructTree();
     }
     
     private void constructTree() {
-    	File inputFolder = new File(this.inputFolderLocation);
-	    File[] listOfFolders = inputFolder.listFiles();
-	    
 	    int documentCount = 0;
-	    for (int i = 0; i < listOfFolders.length; i++) {
-		    File inputFolder2 = new File(listOfFolders[i].getPath());
-		    File[] listOfFiles = inputFolder2.listFiles();
-		    
-		    for (int j = 0; j < listOfFiles.length; j++) {
-		      	FileInputStream fstream = null;
-		      	DataInputStream  inStream = null;
-		        BufferedReader br = null;
-		        
-		        String fileData = "";
-				try {
-		      		// Open the file that is the first 
-		      		// command line parameter
-		      		fstream = new FileInputStream(listOfFiles[j]);
-		      		
-		            // Get the object of DataInputStream
-		        	inStream = new DataInputStream(fstream);
-		            br = new BufferedReader(new InputStreamReader(inStream));
-		        
-		            String strLine = "";
-		        	//Read File Line By Line
-		        	while ((strLine = br.readLine()) != null)   {
-		          		// Print the content on the console
-		        		fileData = fileData + " " + strLine;
-		        	}
-		        	fileData = fileData.trim();
-		        	
-		    	    //Close the input stream
-		    	    inStream.close();
-		    	    
-		        } catch (Exception e) { //Catch exception if any
-		          System.err.println("Error: " + e.getMessage());
-		        }
-		        	        
-		        StringBuilder builder = new StringBuilder();
-		        StringTokenizer wordCodeTokenizer = new StringTokenizer(fileData);
-			    while (wordCodeTokenizer.hasMoreTokens()) {
-			    	String nextWordCode = wordCodeTokenizer.nextToken();
-			    	char codeChar = (char)Integer.parseInt(nextWordCode);
-			    	builder.append(codeChar);
-			    }  	
-		       
-			    documentCount++;
-		        addSequence(builder.toString(), documentCount, false);
-		    }
+	    for (int i = 0; i < this.corpus.numOfDocs(); i++) {
+		    documentCount++;
+		    if (this.suffixArray != null)
+		    	this.suffixArray.addSequence(this.corpus.getDocument(i));
+		    else
+		    	addSequence(this.corpus.getDocument(i), documentCount);
 	    }
 	    this.numOfDocs = documentCount;
 	    constructNodeDocumentList();
@@ -91,24 +84,143 @@ public class WordSuffixTree extends UkkonenSuffixTree {
 		System.out.println("Number of nodes used for analysis = " + this.nodeDocumentList.size());
     }
     
+    //Appends coded documents to the tree and updates the node document
+    //lists for them (see updateNodeDocumentList). Returns the indices of
+    //the nodes that changed or were added, for the similarity calculations
+    //to be updated selectively. Not for a tree whose nodes were compacted
+    //(see compactNodes), which no sequence can be added to
+    public int[] addDocuments(List<int[]> documents) {
+        if (suffixArray != null)
+            throw new UnsupportedOperationException(
+                    "Documents can only be added with the suffixTree backend.\n");
+        if (getCompactNodes() != null)
+            throw new UnsupportedOperationException(
+                    "Documents cannot be added once the nodes are compacted.\n");
+        for (int[] wordCodes : documents) {
+            this.numOfDocs++;
+            addSequence(wordCodes, this.numOfDocs);
+        }
+        this.corpus = this.corpus.withDocuments(documents);
+        return updateNodeDocumentList();
+    }
+
+    @Override
+    public void setNodePruning(NodePruning nodePruning) {
+        super.setNodePruning(nodePruning);
+        if (suffixArray != null)
+            suffixArray.setNodePruning(nodePruning);
+    }
+
+    @Override
+    public void constructNodeDocumentList() {
+        if (suffixArray != null)
+            suffixArray.constructNodeDocumentList(nodeDocumentList,
+                    nodeDocumentListScores);
+        else
+            super.constructNodeDocumentList();
+    }
+
+    @Override
+    public int getNodeLabelStart(int node) {
+        return (suffixArray != null) ? suffixArray.getNodeLabelStart(node)
+                : super.getNodeLabelStart(node);
+    }
+
+    @Override
+    public int getNodeLabelLength(int node) {
+        return (suffixArray != null) ? suffixArray.getNodeLabelLength(node)
+                : super.getNodeLabelLength(node);
+    }
+
+    public int numOfDocs() {
+        return numOfDocs;
+    }
+
+    public int numOfWords() {
+        return wordList.size();
+    }
+
+    public String getInputFolderLocation() {
+        return inputFolderLocation;
+    }
+
+    public CodedCorpus getCodedCorpus() {
+        return corpus;
+    }
+
+    public int numOfNodes() {
+        return nodeDocumentList.size();
+    }
+
+    public float getNodeScore(int node) {
+        return nodeDocumentListScores.get(node);
+    }
+
+    public int numOfNodeDocuments(int node) {
+        return nodeDocumentList.get(node).size();
+    }
+
+    public int getNodeDocuments(int node, int[] docs, short[] counts) {
+        int num = 0;
+        for (Map.Entry<Integer, Short> entry : nodeDocumentList.get(node)
+                .entrySet()) {
+            docs[num] = entry.getKey();
+            counts[num++] = entry.getValue();
+        }
+        return num;
+    }
+
+    public CharSequence getNodePhrase(int node) {
+        int start = getNodeLabelStart(node);
+        return translate(start, start + getNodeLabelLength(node), false);
+    }
+
+    /**
+     * @return the word codes of the path label of node <code>node</code> of
+     *         nodeDocumentList
+     */
+    public int[] getNodeLabelCodes(int node) {
+        int start = getNodeLabelStart(node);
+        int[] codes = new int[getNodeLabelLength(node)];
+        for (int j = 0; j < codes.length; j++)
+            codes[j] = (suffixArray != null) ? suffixArray.codeAt(start + j)
+                    : sequences.codeAt(start + j);
+        return codes;
+    }
+
+    /**
+     * @return the suffix array the node document lists were built from, or
+     *         null if they were built from the nodes of the tree
+     */
+    public GeneralizedSuffixArray getSuffixArray() {
+        return suffixArray;
+    }
+
+    /**
+     * @return the backend the node document lists were built with:
+     *         suffixTree, suffixArray or parallelSuffixArray
+     */
+    public String getBackend() {
+        return backend;
+    }
+    
     // these are for dot output
     private int count = 1;
     
-    private String translate(CharSequence label, boolean cut) {
+    // translates the word codes of sequences from start to end into words;
+    // document terminators are shown as $
+    private String translate(int start, int end, boolean cut) {
     	   	
         String res = "";
-        int orig = label.length();
-        if (!label.equals("root")) {
-            if (cut)
-                label = label.toString().substring(0, Math.min(10, label.length()));
-            char[] l = label.toString().toCharArray(); 
-            StringBuilder builder = new StringBuilder();
-            for (int j = 0; j < l.length; j++) {
-            	int wordCode = (int) l[j];
-                builder.append(wordList.get(wordCode) + " ");
-            }
-            res = builder.toString().trim();
+        int orig = end - start;
+        if (cut)
+            end = Math.min(end, start + 10);
+        StringBuilder builder = new StringBuilder();
+        for (int j = start; j < end; j++) {
+        	int wordCode = (suffixArray != null) ? suffixArray.codeAt(j) : sequences.codeAt(j);
+            builder.append(((wordCode < 0) ? "$" : wordList.get(wordCode)) + " ");
         }
+        res = builder.toString().trim();
         if (cut && orig > 10)
             res += " [...]";
         return res;
@@ -124,12 +236,28 @@ public class WordSuffixTree extends UkkonenSuffixTree {
     
     @Override
     public CharSequence getEdgeLabel(SuffixNode child) {
-        return translate(super.getEdgeLabel(child), true);
+        return translate(getEdgeStart(child), getPathEnd(child), true);
     }
 
     @Override
     public CharSequence getLabel(SuffixNode node) {
-        return translate(super.getLabel(node), true);
+        return (node == root) ? "" : translate(node.labelStart,
+                getPathEnd(node), true);
+    }
+
+    @Override
+    public CharSequence getEdgeLabel(CompactNode node) {
+        CompactNodeStore store = node.getStore();
+        int end = store.getLabelEnd(node.getId());
+        return translate(end - store.getEdgeLength(node.getId()), end, true);
+    }
+
+    @Override
+    public CharSequence getLabel(CompactNode node) {
+        CompactNodeStore store = node.getStore();
+        return (node.getId() == store.getRoot()) ? "" : translate(store
+                .getLabelStart(node.getId()), store.getLabelEnd(node.getId()),
+                true);
     }
 
     /**
@@ -148,7 +276,10 @@ public class WordSuffixTree extends UkkonenSuffixTree {
             String string = dest;
             BufferedWriter fileWriter = new BufferedWriter(new FileWriter(new File(string)));
             fileWriter.write("Suffix Tree Representation\n");
-            printDotBody(root, null, false, fileWriter, 0);
+            if (compactNodes != null)
+                printCompactDotBody(compactNodes, fileWriter);
+            else
+                printDotBody(root, fileWriter);
             fileWriter.write("}");
             fileWriter.close();
         } catch (IOException e) {
@@ -156,36 +287,81 @@ public class WordSuffixTree extends UkkonenSuffixTree {
         }
     }
 
-    private ArrayList<SuffixNode> printDotBody(SuffixNode root,
-            ArrayList<SuffixNode> list, boolean leavesOnly, BufferedWriter writer,
-            int depth) throws IOException {
-        tab(writer, depth);
-        root.id = count;
-        if (root.parent != null)
-            writer.write(root.parent.id + "->");
-        writer.write("" + count);
-        writer.write("[label=\"" + getEdgeLabel(root).toString().trim()
-                + ", Text: " + root.textNumber + ", Suffix: "
-                + ((SimpleNode) root).suffixIndex + "\"];\n");
-        Iterator<SuffixNode> iterator;
-        if (list == null) {
-            list = new ArrayList<SuffixNode>();
-            count = 1;
+    // nodes are numbered from 1 in pre-order
+    private void printDotBody(SuffixNode start, BufferedWriter writer)
+            throws IOException {
+        count = 0;
+        DotWriter dotWriter = new DotWriter(writer);
+        visitNodes(start, dotWriter, false);
+        if (dotWriter.error != null)
+            throw dotWriter.error;
+    }
+
+    // writes one line per node; stops the walk at the first write error
+    private class DotWriter implements NodeVisitor {
+
+        private final BufferedWriter writer;
+
+        IOException error;
+
+        DotWriter(BufferedWriter writer) {
+            this.writer = writer;
+        }
+
+        public boolean preVisit(SuffixNode node, int depth) {
+            if (error != null)
+                return false;
+            try {
+                tab(writer, depth);
+                node.id = ++count;
+                if (node.parent != null)
+                    writer.write(node.parent.id + "->");
+                writer.write("" + node.id);
+                writer.write("[label=\"" + getEdgeLabel(node).toString().trim()
+                        + ", Text: " + node.textNumber + ", Suffix: "
+                        + ((SimpleNode) node).suffixIndex + "\"];\n");
+            } catch (IOException e) {
+                error = e;
+                return false;
+            }
+            return true;
+        }
+
+        public void postVisit(SuffixNode node, int depth) {
         }
-        if (!leavesOnly || (leavesOnly && root.isTerminal()))
-            list.add(root);
-        if (!root.isTerminal()) {
-            iterator = root.getChildren().values().iterator();
-            // writer.write("\n");
-            depth = depth + 1;
-//            last = count;
-            while (iterator.hasNext()) {
-                SuffixNode next = (SuffixNode) iterator.next();
-                count++;
-                list = printDotBody(next, list, leavesOnly, writer, depth);
+    }
+
+    // same output as printDotBody, for a tree whose nodes have been
+    // compacted; nodes are numbered after their CompactNodeStore number.
+    // The walk keeps its own stack, as visitNodes does
+    private void printCompactDotBody(CompactNodeStore store,
+            BufferedWriter writer) throws IOException {
+        int[] stackNodes = new int[16], stackDepths = new int[16];
+        int top = 0;
+        stackNodes[0] = store.getRoot();
+        stackDepths[0] = 0;
+        while (top >= 0) {
+            int node = stackNodes[top];
+            int depth = stackDepths[top--];
+            tab(writer, depth);
+            if (store.getParent(node) != CompactNodeStore.NO_NODE)
+                writer.write((store.getParent(node) + 1) + "->");
+            writer.write("" + (node + 1));
+            writer.write("[label=\"" + getEdgeLabel(store.getNode(node)).toString().trim()
+                    + ", Text: " + store.getTextNumber(node) + ", Suffix: "
+                    + store.getSuffixIndex(node) + "\"];\n");
+
+            // children pushed last to first, so the first is written next
+            int numChildren = store.numChildren(node);
+            if (top + numChildren >= stackNodes.length) {
+                stackNodes = Arrays.copyOf(stackNodes, 2 * (top + numChildren + 1));
+                stackDepths = Arrays.copyOf(stackDepths, stackNodes.length);
+            }
+            for (int i = numChildren - 1; i >= 0; i--) {
+                stackNodes[++top] = store.getChild(node, i);
+                stackDepths[top] = depth + 1;
             }
         }
-        return list;
     }
 
     /**
@@ -0,0 +1,658 @@
+package com.doccluster.test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import com.doccluster.algs.HeapTriangularMatrix;
+import com.doccluster.algs.MappedTriangularMatrix;
+import com.doccluster.algs.MinHashLSH;
+import com.doccluster.algs.NeighborGraph;
+import com.doccluster.algs.ProgressListener;
+import com.doccluster.algs.SimilarityMatrix;
+import com.doccluster.algs.TriangularMatrix;
+import com.doccluster.suffixtree.GeneralizedSuffixArray;
+import com.doccluster.suffixtree.NodePruning;
+import com.doccluster.suffixtree.UkkonenSuffixTree;
+import com.doccluster.suffixtree.WordSuffixTree;
+
+public class Benchmark {
+
+	//Runs the benchmark named by the first argument on synthetic corpora.
+	//The remaining arguments are the document counts to run it with.
+	//  treeBuild 1000 10000 50000   suffix tree construction time
+	//  nodeMemory 10000             heap per node, before and after compactNodes()
+	//  phraseIndex 10000            suffix tree vs suffix array: heap, build and node lists time
+	//  parallelBuild 50000          sharded suffix array build on 1 to 32 threads
+	//  incremental 10000            adding 300 documents: list update vs full reconstruction
+	//  nodePruning 10000            node document lists without and with pruning thresholds
+	//  allPairs 2000                cosine similarity matrix: pairwise vs invertedIndex engine
+	//  parallelSimilarity 5000      pairwise similarity matrix tiles on 1, 8 and 32 threads
+	//  similarityKernels 5000       pairwise wordBased matrix per similarity type, scalar or Vector API kernels
+	//  mappedMatrix 5000            similarity matrix and GHAC on the heap vs in a mapped file
+	//  neighborGraph 5000           full similarity matrix vs top-10 neighbor graph: time and heap
+	//  similarityJoin 5000          full cosine similarity matrix vs similarity join at 5 thresholds
+	//  minHashLSH 5000              MinHash LSH candidates: time, candidates and recall per setting
+	//  incrementalMatrix 5000       adding 300 documents: similarity matrix update vs new matrix
+	public static void main(String[] args) {
+		final String benchmark = (args.length >= 1) ? args[0].trim() : "treeBuild";
+		int[] docCounts = { 1000 };
+		if (args.length >= 2) {
+			docCounts = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				docCounts[i - 1] = Integer.parseInt(args[i].trim());
+		}
+
+		int heapMaxSize = (int) (Runtime.getRuntime().maxMemory()/1000000);
+		System.out.println("Maximum available memory heap size = " + heapMaxSize + "mb\n");
+
+		for (int i = 0; i < docCounts.length; i++) {
+			int[][] corpus = syntheticCorpus(docCounts[i], 60, 5000, 42);
+
+			if (benchmark.equals("treeBuild"))
+				benchmarkTreeBuild(corpus);
+			else if (benchmark.equals("nodeMemory"))
+				benchmarkNodeMemory(corpus);
+			else if (benchmark.equals("phraseIndex"))
+				benchmarkPhraseIndex(corpus);
+			else if (benchmark.equals("parallelBuild"))
+				benchmarkParallelBuild(corpus);
+			else if (benchmark.equals("incremental"))
+				benchmarkIncremental(corpus, 300);
+			else if (benchmark.equals("nodePruning"))
+				benchmarkNodePruning(corpus);
+			else if (benchmark.equals("allPairs"))
+				benchmarkAllPairs(corpus, 5000);
+			else if (benchmark.equals("parallelSimilarity"))
+				benchmarkParallelSimilarity(corpus, 5000);
+			else if (benchmark.equals("similarityKernels"))
+				benchmarkSimilarityKernels(corpus, 5000);
+			else if (benchmark.equals("mappedMatrix"))
+				benchmarkMappedMatrix(corpus, 5000);
+			else if (benchmark.equals("neighborGraph"))
+				benchmarkNeighborGraph(corpus, 5000, 10);
+			else if (benchmark.equals("similarityJoin"))
+				benchmarkSimilarityJoin(corpus, 5000);
+			else if (benchmark.equals("minHashLSH"))
+				benchmarkMinHashLSH(corpus, 5000, 200);
+			else if (benchmark.equals("incrementalMatrix"))
+				benchmarkIncrementalMatrix(corpus, 5000, 300);
+			else
+				throw new UnsupportedOperationException("Unknown benchmark: " + benchmark + "\n");
+		}
+	}
+
+	//Times the suffix tree construction, one addSequence call per document
+	private static void benchmarkTreeBuild(int[][] corpus) {
+		double startTime = System.currentTimeMillis();
+		UkkonenSuffixTree tree = new UkkonenSuffixTree();
+		for (int i = 0; i < corpus.length; i++)
+			tree.addSequence(corpus[i], i + 1);
+		double endTime = System.currentTimeMillis();
+
+		System.out.println("Documents = " + corpus.length + ", tree construction = " +
+					(endTime - startTime) + " ms");
+	}
+
+	//Measures the heap taken by the tree (text included) before and after
+	//its nodes are compacted
+	private static void benchmarkNodeMemory(int[][] corpus) {
+		long textLength = 0;
+		for (int i = 0; i < corpus.length; i++)
+			textLength += corpus[i].length + 1;
+
+		long baseMemory = usedMemory();
+		UkkonenSuffixTree tree = new UkkonenSuffixTree();
+		for (int i = 0; i < corpus.length; i++)
+			tree.addSequence(corpus[i], i + 1);
+		long treeMemory = usedMemory() - baseMemory;
+
+		double startTime = System.currentTimeMillis();
+		tree.compactNodes();
+		double endTime = System.currentTimeMillis();
+		long compactMemory = usedMemory() - baseMemory;
+
+		int numOfNodes = tree.getCompactNodes().size();
+		System.out.println("Documents = " + corpus.length + ", nodes = " + numOfNodes +
+					", text = " + (4 * textLength) + " bytes");
+		System.out.println("  SimpleNode tree = " + treeMemory + " bytes (" +
+					(treeMemory/numOfNodes) + " bytes/node)");
+		System.out.println("  compacted tree  = " + compactMemory + " bytes (" +
+					(compactMemory/numOfNodes) + " bytes/node, store arrays " +
+					(tree.getCompactNodes().bytesUsed()/numOfNodes) + " bytes/node), compaction = " +
+					(endTime - startTime) + " ms");
+	}
+
+	//Compares the two phrase index backends: heap taken by the index once
+	//built (text included, node document lists excluded), construction time
+	//and node document list time
+	private static void benchmarkPhraseIndex(int[][] corpus) {
+		System.out.println("Documents = " + corpus.length);
+
+		long baseMemory = usedMemory();
+		double startTime = System.currentTimeMillis();
+		UkkonenSuffixTree tree = new UkkonenSuffixTree();
+		for (int i = 0; i < corpus.length; i++)
+			tree.addSequence(corpus[i], i + 1);
+		double buildTime = System.currentTimeMillis() - startTime;
+		long treeMemory = usedMemory() - baseMemory;
+		startTime = System.currentTimeMillis();
+		tree.constructNodeDocumentList();
+		double listTime = System.currentTimeMillis() - startTime;
+		int numOfNodes = tree.nodeDocumentList.size();
+		System.out.println("  suffixTree  = " + treeMemory + " bytes, build = " + buildTime +
+					" ms, node lists = " + listTime + " ms (" + numOfNodes + " nodes)");
+		tree = null;
+
+		baseMemory = usedMemory();
+		startTime = System.currentTimeMillis();
+		GeneralizedSuffixArray suffixArray = new GeneralizedSuffixArray();
+		for (int i = 0; i < corpus.length; i++)
+			suffixArray.addSequence(corpus[i]);
+		suffixArray.build();
+		buildTime = System.currentTimeMillis() - startTime;
+		long arrayMemory = usedMemory() - baseMemory;
+		List<Map<Integer, Short>> docLists = new ArrayList<Map<Integer, Short>>();
+		List<Float> scores = new ArrayList<Float>();
+		startTime = System.currentTimeMillis();
+		suffixArray.constructNodeDocumentList(docLists, scores);
+		listTime = System.currentTimeMillis() - startTime;
+		System.out.println("  suffixArray = " + arrayMemory + " bytes, build = " + buildTime +
+					" ms, node lists = " + listTime + " ms (" + docLists.size() + " nodes)");
+	}
+
+	//Times the suffix array build and the node document lists on a single
+	//thread, then sharded on fork-join pools of 1 to 32 threads
+	private static void benchmarkParallelBuild(int[][] corpus) {
+		System.out.println("Documents = " + corpus.length + ", available processors = " +
+					Runtime.getRuntime().availableProcessors());
+		timeSuffixArray(corpus, null);
+		for (int threads = 1; threads <= 32; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			timeSuffixArray(corpus, pool);
+			pool.shutdown();
+		}
+	}
+
+	private static void timeSuffixArray(int[][] corpus, ForkJoinPool pool) {
+		usedMemory();
+		double startTime = System.currentTimeMillis();
+		GeneralizedSuffixArray suffixArray = (pool == null) ? new GeneralizedSuffixArray() :
+					new GeneralizedSuffixArray(pool);
+		for (int i = 0; i < corpus.length; i++)
+			suffixArray.addSequence(corpus[i]);
+		suffixArray.build();
+		double buildTime = System.currentTimeMillis() - startTime;
+		List<Map<Integer, Short>> docLists = new ArrayList<Map<Integer, Short>>();
+		List<Float> scores = new ArrayList<Float>();
+		startTime = System.currentTimeMillis();
+		suffixArray.constructNodeDocumentList(docLists, scores);
+		double listTime = System.currentTimeMillis() - startTime;
+		System.out.println("  " + ((pool == null) ? "unsharded" : pool.getParallelism() + " threads") +
+					": build = " + buildTime + " ms, node lists = " + listTime + " ms (" +
+					docLists.size() + " nodes)");
+	}
+
+	//Builds the tree and its node document lists on all but the last
+	//"numOfNewDocs" documents, then adds those and times the update of the
+	//lists against constructing them again
+	private static void benchmarkIncremental(int[][] corpus, int numOfNewDocs) {
+		int numOfOldDocs = Math.max(0, corpus.length - numOfNewDocs);
+		UkkonenSuffixTree tree = new UkkonenSuffixTree();
+		for (int i = 0; i < numOfOldDocs; i++)
+			tree.addSequence(corpus[i], i + 1);
+		tree.constructNodeDocumentList();
+		int numOfOldNodes = tree.nodeDocumentList.size();
+
+		double startTime = System.currentTimeMillis();
+		for (int i = numOfOldDocs; i < corpus.length; i++)
+			tree.addSequence(corpus[i], i + 1);
+		double addTime = System.currentTimeMillis() - startTime;
+		startTime = System.currentTimeMillis();
+		int[] changed = tree.updateNodeDocumentList();
+		double updateTime = System.currentTimeMillis() - startTime;
+		int numOfNodes = tree.nodeDocumentList.size();
+		startTime = System.currentTimeMillis();
+		tree.constructNodeDocumentList();
+		double constructTime = System.currentTimeMillis() - startTime;
+
+		System.out.println("Documents = " + numOfOldDocs + " + " + (corpus.length - numOfOldDocs) +
+					", nodes = " + numOfOldNodes + " -> " + numOfNodes + " (" + changed.length +
+					" changed or added)");
+		System.out.println("  addSequence = " + addTime + " ms, update = " + updateTime +
+					" ms, full reconstruction = " + constructTime + " ms");
+	}
+
+	//Node count, heap held by the lists and construction time of the node
+	//document lists, on the suffix tree and on the suffix array, with the
+	//default thresholds and with phrases of 2 to 8 words shared by 3
+	//documents up to half of them
+	private static void benchmarkNodePruning(int[][] corpus) {
+		NodePruning[] prunings = { NodePruning.NONE, new NodePruning(3, 0.5f, 2, 8) };
+		String[] names = { "default", "df 3..50%, 2..8 words" };
+
+		UkkonenSuffixTree tree = new UkkonenSuffixTree();
+		GeneralizedSuffixArray suffixArray = new GeneralizedSuffixArray();
+		for (int i = 0; i < corpus.length; i++) {
+			tree.addSequence(corpus[i], i + 1);
+			suffixArray.addSequence(corpus[i]);
+		}
+		suffixArray.build();
+
+		System.out.println("Documents = " + corpus.length);
+		for (int p = 0; p < prunings.length; p++) {
+			tree.setNodePruning(prunings[p]);
+			tree.nodeDocumentList.clear();
+			long baseMemory = usedMemory();
+			double startTime = System.currentTimeMillis();
+			tree.constructNodeDocumentList();
+			double treeTime = System.currentTimeMillis() - startTime;
+			long treeMemory = usedMemory() - baseMemory;
+			int numOfNodes = tree.nodeDocumentList.size();
+			tree.nodeDocumentList.clear();
+			tree.nodeDocumentListScores.clear();
+
+			suffixArray.setNodePruning(prunings[p]);
+			List<Map<Integer, Short>> docLists = new ArrayList<Map<Integer, Short>>();
+			List<Float> scores = new ArrayList<Float>();
+			baseMemory = usedMemory();
+			startTime = System.currentTimeMillis();
+			suffixArray.constructNodeDocumentList(docLists, scores);
+			double arrayTime = System.currentTimeMillis() - startTime;
+			long arrayMemory = usedMemory() - baseMemory;
+
+			System.out.println("  " + names[p] + ": nodes = " + numOfNodes + ", lists = " +
+						treeMemory + " bytes, suffix tree = " + treeTime + " ms, suffix array = " +
+						arrayTime + " ms (" + docLists.size() + " nodes, " + arrayMemory + " bytes)");
+		}
+	}
+
+	//Times the cosine similarity matrix, phraseBased and wordBased, with
+	//the pairwise and the invertedIndex engines, and checks they agree
+	//bitwise, whichever kernels are in use (see benchmarkSimilarityKernels).
+	//The corpus is written out as coded documents for WordSuffixTree to read
+	private static void benchmarkAllPairs(int[][] corpus, int numOfWords) {
+		WordSuffixTree wordST = codedCorpusTree(corpus, numOfWords);
+		if (wordST == null)
+			return;
+
+		String[] methods = { "phraseBased", "wordBased" };
+		for (int m = 0; m < methods.length; m++) {
+			double startTime = System.currentTimeMillis();
+			SimilarityMatrix pairwise = new SimilarityMatrix(wordST, methods[m], "cosine", "pairwise");
+			double pairwiseTime = System.currentTimeMillis() - startTime;
+			startTime = System.currentTimeMillis();
+			SimilarityMatrix invertedIndex = new SimilarityMatrix(wordST, methods[m], "cosine", "invertedIndex");
+			double invertedIndexTime = System.currentTimeMillis() - startTime;
+
+			int numOfDifferences = 0;
+			for (int i = 0; i < pairwise.matrix.length; i++)
+				for (int j = 0; j <= i; j++)
+					if (Float.floatToIntBits(pairwise.matrix[i][j]) != Float.floatToIntBits(invertedIndex.matrix[i][j]))
+						numOfDifferences++;
+			System.out.println("Documents = " + corpus.length + ", " + methods[m] + ": pairwise = " +
+						pairwiseTime + " ms, invertedIndex = " + invertedIndexTime + " ms, " +
+						numOfDifferences + " entries differ");
+		}
+	}
+
+	//Throughput of the pairwise cosine similarity matrix, phraseBased and
+	//wordBased, on the calling thread and on pools of 1, 8 and 32 threads,
+	//checking the pools give the same matrix
+	private static void benchmarkParallelSimilarity(int[][] corpus, int numOfWords) {
+		WordSuffixTree wordST = codedCorpusTree(corpus, numOfWords);
+		if (wordST == null)
+			return;
+		long numOfPairs = (long) corpus.length * (corpus.length - 1) / 2;
+		System.out.println("Documents = " + corpus.length + ", available processors = " +
+					Runtime.getRuntime().availableProcessors());
+
+		String[] methods = { "phraseBased", "wordBased" };
+		int[] threadCounts = { 0, 1, 8, 32 };
+		for (int m = 0; m < methods.length; m++) {
+			SimilarityMatrix sequential = null;
+			for (int t = 0; t < threadCounts.length; t++) {
+				ForkJoinPool pool = (threadCounts[t] == 0) ? null : new ForkJoinPool(threadCounts[t]);
+				double startTime = System.currentTimeMillis();
+				SimilarityMatrix simMatrix = new SimilarityMatrix(wordST, methods[m], "cosine", "pairwise",
+							pool, ProgressListener.NONE);
+				double time = System.currentTimeMillis() - startTime;
+				if (pool != null)
+					pool.shutdown();
+
+				int numOfDifferences = 0;
+				if (sequential == null)
+					sequential = simMatrix;
+				else {
+					for (int i = 0; i < simMatrix.matrix.length; i++)
+						for (int j = 0; j <= i; j++)
+							if (Float.floatToIntBits(sequential.matrix[i][j]) != Float.floatToIntBits(simMatrix.matrix[i][j]))
+								numOfDifferences++;
+				}
+				System.out.println("  " + methods[m] + ", " + ((pool == null) ? "calling thread" :
+							threadCounts[t] + " threads") + ": " + time + " ms, " +
+							(long) (numOfPairs / (time / 1000)) + " pairs/s, " + numOfDifferences +
+							" entries differ");
+			}
+		}
+	}
+
+	//Throughput of the pairwise wordBased similarity matrix of each
+	//similarity type on the calling thread, with the kernels in use: the
+	//Vector API euclidean and correlation ones when run with
+	//"--add-modules jdk.incubator.vector", the scalar ones otherwise or
+	//with -Ddoccluster.scalarKernels=true. Cosine is always scalar.
+	//Each is timed in the last of 3 rounds, once the JIT compiled them
+	private static void benchmarkSimilarityKernels(int[][] corpus, int numOfWords) {
+		WordSuffixTree wordST = codedCorpusTree(corpus, numOfWords);
+		if (wordST == null)
+			return;
+		long numOfPairs = (long) corpus.length * (corpus.length - 1) / 2;
+		System.out.println("Documents = " + corpus.length + ", kernels = " +
+					(SimilarityMatrix.usesVectorKernels() ? "Vector API" : "scalar"));
+
+		String[] similarityTypes = { "cosine", "euclidean", "correlation" };
+		double[] times = new double[similarityTypes.length];
+		for (int round = 0; round < 3; round++) {
+			for (int s = 0; s < similarityTypes.length; s++) {
+				double startTime = System.currentTimeMillis();
+				new SimilarityMatrix(wordST, "wordBased", similarityTypes[s], "pairwise", null, ProgressListener.NONE);
+				times[s] = System.currentTimeMillis() - startTime;
+			}
+		}
+		for (int s = 0; s < similarityTypes.length; s++)
+			System.out.println("  " + similarityTypes[s] + ": " + times[s] + " ms, " +
+						(long) (numOfPairs / (times[s] / 1000)) + " pairs/s");
+	}
+
+	//Times the wordBased cosine similarity matrix kept on the heap and in a
+	//MappedTriangularMatrix, and a pass of GHAC-style reads over each,
+	//checking they hold the same values
+	private static void benchmarkMappedMatrix(int[][] corpus, int numOfWords) {
+		WordSuffixTree wordST = codedCorpusTree(corpus, numOfWords);
+		if (wordST == null)
+			return;
+		String matrixFile = System.getProperty("java.io.tmpdir") + File.separator +
+					"benchmarkMatrix" + corpus.length;
+
+		TriangularMatrix[] matrices = new TriangularMatrix[2];
+		for (int k = 0; k < matrices.length; k++) {
+			double startTime = System.currentTimeMillis();
+			try {
+				matrices[k] = (k == 0) ? new HeapTriangularMatrix(corpus.length) :
+							MappedTriangularMatrix.create(matrixFile, corpus.length);
+			} catch (IOException e) {
+				System.err.println("Error: " + e.getMessage());
+				return;
+			}
+			new SimilarityMatrix(wordST, "wordBased", "cosine", "pairwise", null, ProgressListener.NONE, matrices[k]);
+			double buildTime = System.currentTimeMillis() - startTime;
+
+			//the average similarity of every document to all the others, as
+			//the first GHAC step reads them
+			startTime = System.currentTimeMillis();
+			double total = 0;
+			for (int i = 0; i < corpus.length; i++)
+				for (int j = 0; j < corpus.length; j++)
+					total += matrices[k].get(i, j);
+			double readTime = System.currentTimeMillis() - startTime;
+			System.out.println("Documents = " + corpus.length + ", " + ((k == 0) ? "heap" : "mapped") +
+						": matrix = " + buildTime + " ms, full read = " + readTime + " ms, average = " +
+						(total / corpus.length / corpus.length));
+		}
+
+		int numOfDifferences = 0;
+		for (int i = 0; i < corpus.length; i++)
+			for (int j = 0; j <= i; j++)
+				if (Float.floatToIntBits(matrices[0].get(i, j)) != Float.floatToIntBits(matrices[1].get(i, j)))
+					numOfDifferences++;
+		System.out.println("  " + numOfDifferences + " entries differ, file = " +
+					new File(matrixFile).length() + " bytes");
+	}
+
+	//Times the wordBased cosine similarity matrix and its neighbor graph of
+	//the k most similar documents, with both engines, and the heap each
+	//takes, checking the graph holds the values of the matrix
+	private static void benchmarkNeighborGraph(int[][] corpus, int numOfWords, int k) {
+		WordSuffixTree wordST = codedCorpusTree(corpus, numOfWords);
+		if (wordST == null)
+			return;
+
+		String[] engines = { "pairwise", "invertedIndex" };
+		for (int e = 0; e < engines.length; e++) {
+			long baseMemory = usedMemory();
+			double startTime = System.currentTimeMillis();
+			SimilarityMatrix full = new SimilarityMatrix(wordST, "wordBased", "cosine", engines[e], null,
+						ProgressListener.NONE);
+			double matrixTime = System.currentTimeMillis() - startTime;
+			long matrixMemory = usedMemory() - baseMemory;
+
+			startTime = System.currentTimeMillis();
+			NeighborGraph graph = new SimilarityMatrix(wordST, "wordBased", "cosine", engines[e], null,
+						ProgressListener.NONE, k).getNeighborGraph();
+			double graphTime = System.currentTimeMillis() - startTime;
+			long graphMemory = usedMemory() - baseMemory - matrixMemory;
+
+			int numOfDifferences = 0;
+			for (int i = 0; i < corpus.length; i++)
+				for (int r = 0; r < graph.numOfNeighbors(i); r++)
+					if (Float.floatToIntBits(graph.getSimilarity(i, r)) !=
+							Float.floatToIntBits(full.getValues().get(i, graph.getNeighbor(i, r))))
+						numOfDifferences++;
+			System.out.println("Documents = " + corpus.length + ", " + engines[e] + ": matrix = " + matrixTime +
+						" ms (" + matrixMemory + " bytes), top-" + k + " graph = " + graphTime + " ms (" +
+						graphMemory + " bytes), " + numOfDifferences + " entries differ");
+		}
+	}
+
+	//Times the cosine similarity matrix, phraseBased and wordBased, with
+	//the pairwise engine, and the similarity join of the pairs at least 0.05
+	//to 0.7 similar, checking the join finds the pairs of the matrix
+	private static void benchmarkSimilarityJoin(int[][] corpus, int numOfWords) {
+		WordSuffixTree wordST = codedCorpusTree(corpus, numOfWords);
+		if (wordST == null)
+			return;
+
+		String[] methods = { "phraseBased", "wordBased" };
+		float[] minSimilarities = { 0.05f, 0.1f, 0.3f, 0.5f, 0.7f };
+		for (int m = 0; m < methods.length; m++) {
+			double startTime = System.currentTimeMillis();
+			SimilarityMatrix full = new SimilarityMatrix(wordST, methods[m], "cosine", "pairwise", null, ProgressListener.NONE);
+			double matrixTime = System.currentTimeMillis() - startTime;
+			System.out.println("Documents = " + corpus.length + ", " + methods[m] + ": matrix = " + matrixTime + " ms");
+
+			for (int t = 0; t < minSimilarities.length; t++) {
+				startTime = System.currentTimeMillis();
+				NeighborGraph graph = new SimilarityMatrix(wordST, methods[m], ProgressListener.NONE, minSimilarities[t])
+							.getNeighborGraph();
+				double joinTime = System.currentTimeMillis() - startTime;
+
+				//every pair of the matrix at least minSimilarity similar, and
+				//no other, with the same similarity
+				long numOfPairs = 0, numOfDifferences = 0;
+				for (int i = 0; i < corpus.length; i++) {
+					for (int j = 0; j < i; j++) {
+						float similarity = full.matrix[i][j];
+						if (similarity >= minSimilarities[t]) {
+							numOfPairs++;
+							if (Float.floatToIntBits(graph.get(i, j)) != Float.floatToIntBits(similarity))
+								numOfDifferences++;
+						}
+					}
+					numOfDifferences += graph.numOfNeighbors(i);
+				}
+				numOfDifferences -= 2*numOfPairs;
+				System.out.println("  minSimilarity = " + minSimilarities[t] + ": join = " + joinTime + " ms, " +
+							numOfPairs + " pairs, " + numOfDifferences + " differ");
+			}
+		}
+	}
+
+	//Operating points of MinHash LSH over the phrase sets: for settings of
+	//bands by rows, the time to find the candidate pairs and to compute
+	//their phraseBased cosine similarities, the share of the pairs they
+	//are, and their recall at a few similarities, against the full matrix
+	//on a sample of "sampleSize" documents
+	private static void benchmarkMinHashLSH(int[][] corpus, int numOfWords, int sampleSize) {
+		WordSuffixTree wordST = codedCorpusTree(corpus, numOfWords);
+		if (wordST == null)
+			return;
+
+		double startTime = System.currentTimeMillis();
+		SimilarityMatrix exact = new SimilarityMatrix(wordST, "phraseBased", "cosine", "invertedIndex", null,
+					ProgressListener.NONE);
+		double matrixTime = System.currentTimeMillis() - startTime;
+		int[] sample = new int[Math.min(sampleSize, corpus.length)];
+		Random random = new Random(7);
+		for (int i = 0; i < sample.length; i++)
+			sample[i] = random.nextInt(corpus.length);
+		long numOfPairs = (long) corpus.length * (corpus.length - 1) / 2;
+		System.out.println("Documents = " + corpus.length + ", matrix = " + matrixTime + " ms, sample = " +
+					sample.length + " documents");
+
+		int[][] settings = { { 10, 1 }, { 20, 2 }, { 40, 2 }, { 20, 3 }, { 50, 4 }, { 100, 5 } };
+		float[] minSimilarities = { 0.05f, 0.1f, 0.2f, 0.3f };
+		for (int k = 0; k < settings.length; k++) {
+			startTime = System.currentTimeMillis();
+			MinHashLSH lsh = new MinHashLSH(wordST, settings[k][0], settings[k][1]);
+			double lshTime = System.currentTimeMillis() - startTime;
+			startTime = System.currentTimeMillis();
+			new SimilarityMatrix(wordST, "phraseBased", "cosine", ProgressListener.NONE, lsh);
+			double similarityTime = System.currentTimeMillis() - startTime;
+
+			String recalls = "";
+			for (int t = 0; t < minSimilarities.length; t++)
+				recalls += ", recall(" + minSimilarities[t] + ") = " +
+							new java.text.DecimalFormat("0.000").format(lsh.recall(exact.getValues(),
+									sample, minSimilarities[t]));
+			System.out.println("  " + settings[k][0] + " bands of " + settings[k][1] + " rows: LSH = " + lshTime +
+						" ms, similarities = " + similarityTime + " ms, " + lsh.numOfCandidatePairs() +
+						" candidates (" + new java.text.DecimalFormat("0.00").format(
+								100.0 * lsh.numOfCandidatePairs() / numOfPairs) + "%)" + recalls);
+		}
+	}
+
+	//Computes the phraseBased cosine similarity matrix of all but the last
+	//"numOfNewDocs" documents, adds those to the tree and to the matrix,
+	//refreshing the rows of the documents more than 0.05 and 0.2 stale or
+	//every row, and times the update against a new matrix of the updated
+	//tree, with the largest difference of their entries and of the
+	//staleness bounds
+	private static void benchmarkIncrementalMatrix(int[][] corpus, int numOfWords, int numOfNewDocs) {
+		int numOfOldDocs = Math.max(0, corpus.length - numOfNewDocs);
+		List<int[]> newDocs = new ArrayList<int[]>();
+		for (int i = numOfOldDocs; i < corpus.length; i++)
+			newDocs.add(corpus[i]);
+
+		float[] tolerances = { 0.2f, 0.05f, -1 };
+		for (int t = 0; t < tolerances.length; t++) {
+			WordSuffixTree wordST = codedCorpusTree(Arrays.copyOf(corpus, numOfOldDocs), numOfWords);
+			if (wordST == null)
+				return;
+			SimilarityMatrix matrix = new SimilarityMatrix(wordST, "phraseBased", "cosine");
+			double startTime = System.currentTimeMillis();
+			wordST.addDocuments(newDocs);
+			int[] computed = matrix.addDocuments(wordST, tolerances[t]);
+			double updateTime = System.currentTimeMillis() - startTime;
+
+			startTime = System.currentTimeMillis();
+			SimilarityMatrix full = new SimilarityMatrix(wordST, "phraseBased", "cosine");
+			double matrixTime = System.currentTimeMillis() - startTime;
+			float maxDifference = 0, maxStaleness = 0;
+			for (int i = 0; i < corpus.length; i++) {
+				for (int j = 0; j < i; j++) {
+					maxDifference = Math.max(maxDifference, Math.abs(matrix.matrix[i][j] - full.matrix[i][j]));
+					maxStaleness = Math.max(maxStaleness, matrix.getStaleness(i, j));
+				}
+			}
+			System.out.println("Documents = " + numOfOldDocs + " + " + newDocs.size() + ", tolerance = " +
+						tolerances[t] + ": update = " + updateTime + " ms (" + computed.length +
+						" rows), new matrix = " + matrixTime + " ms, largest difference = " + maxDifference +
+						", staleness bound = " + maxStaleness);
+		}
+	}
+
+	//Writes the corpus to a temporary folder and builds its WordSuffixTree,
+	//with words "w0" to "w<numOfWords - 1>"; null if it cannot be written
+	private static WordSuffixTree codedCorpusTree(int[][] corpus, int numOfWords) {
+		String folder = System.getProperty("java.io.tmpdir") + File.separator +
+					"benchmarkCorpus" + corpus.length;
+		try {
+			writeCodedCorpus(corpus, folder);
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			return null;
+		}
+		List<String> wordList = new ArrayList<String>();
+		for (int i = 0; i < numOfWords; i++)
+			wordList.add("w" + i);
+		return new WordSuffixTree(folder, wordList);
+	}
+
+	//Writes the corpus as WordSuffixTree reads it: one file of word codes
+	//per document, in a folder of the CodedData folder
+	private static void writeCodedCorpus(int[][] corpus, String folder) throws IOException {
+		File documentFolder = new File(new File(folder + "\\CodedData"), "documents");
+		documentFolder.mkdirs();
+		for (int i = 0; i < corpus.length; i++) {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(new File(documentFolder, "" + i)));
+			try {
+				for (int k = 0; k < corpus[i].length; k++)
+					writer.write(corpus[i][k] + ((k % 10 == 9) ? "\n" : " "));
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	//Generates a coded corpus with a skewed word distribution. Every document
+	//belongs to one of a few topics and borrows phrases from it, so the
+	//documents share phrases the way real ones do.
+	static int[][] syntheticCorpus(int numOfDocs, int wordsPerDoc, int numOfWords, long seed) {
+		final int numOfTopics = 5, phrasesPerTopic = 50, phraseLength = 4;
+		Random random = new Random(seed);
+
+		int[][][] topicPhrases = new int[numOfTopics][phrasesPerTopic][phraseLength];
+		for (int t = 0; t < numOfTopics; t++)
+			for (int p = 0; p < phrasesPerTopic; p++)
+				for (int w = 0; w < phraseLength; w++)
+					topicPhrases[t][p][w] = randomWord(random, numOfWords);
+
+		int[][] corpus = new int[numOfDocs][];
+		for (int i = 0; i < numOfDocs; i++) {
+			int topic = i % numOfTopics;
+			int length = wordsPerDoc/2 + random.nextInt(wordsPerDoc);
+			corpus[i] = new int[length];
+			int k = 0;
+			while (k < length) {
+				if (random.nextInt(4) == 0) {
+					int[] phrase = topicPhrases[topic][random.nextInt(phrasesPerTopic)];
+					for (int w = 0; w < phraseLength && k < length; w++)
+						corpus[i][k++] = phrase[w];
+				} else
+					corpus[i][k++] = randomWord(random, numOfWords);
+			}
+		}
+		return corpus;
+	}
+
+	//Word codes follow a skewed distribution
+	private static int randomWord(Random random, int numOfWords) {
+		double x = random.nextDouble();
+		return (int) (numOfWords * x * x * x);
+	}
+}
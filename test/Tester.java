@@ -1,5 +1,6 @@
 package com.doccluster.test;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -7,6 +8,9 @@ import java.util.Set;
 
 import com.doccluster.algs.*;
 import com.doccluster.cleaner.DataCleaner;
+import com.doccluster.suffixtree.MappedPhraseIndex;
+import com.doccluster.suffixtree.NodePruning;
+import com.doccluster.suffixtree.PhraseIndex;
 import com.doccluster.suffixtree.WordSuffixTree;
 
 public class Tester {
@@ -33,6 +37,25 @@ public class Tester {
 		final int numOfClusters = Integer.parseInt(args[4].trim()); 
 		final int numOfDocsPerCluster = Integer.parseInt(args[5].trim());
 		final String docKeyWord = (args.length >= 7) ? args[6] : "";
+		//suffixTree, suffixArray or parallelSuffixArray
+		final String phraseIndexBackend = (args.length >= 8) ? args[7].trim() : "suffixTree";
+		//heap, or mapped to keep the similarity matrices in files of the
+		//OtherOutputFiles folder instead of the heap
+		final String similarityMatrixStore = (args.length >= 9) ? args[8].trim() : "heap";
+		//float, or half or byte to keep the similarity matrices rounded to
+		//fewer bits (see QuantizedTriangularMatrix); byte only with cosine
+		//similarities, as it moves euclidean KNN results too far
+		final String similarityMatrixFormat = (args.length >= 10) ? args[9].trim() : "float";
+		//text, gzipText or binary (see SimilarityMatrix.outputSimilarityMatrix)
+		final String similarityMatrixOutput = (args.length >= 11) ? args[10].trim() : "text";
+		//matrix, or neighborGraph for KNN to find the nearest neighbors in a
+		//graph of the most similar documents (see NeighborGraph) instead of
+		//the phrase-based similarity matrix
+		final String knnSimilarities = (args.length >= 12) ? args[11].trim() : "matrix";
+		//objects, or compact to replace the nodes of the suffix tree by a
+		//smaller copy once it is built (see UkkonenSuffixTree.compactNodes),
+		//after which no documents can be added to it
+		final String suffixTreeNodes = (args.length >= 13) ? args[12].trim() : "objects";
 		
 		
 		System.out.println("\nProgram started...");
@@ -48,35 +71,58 @@ public class Tester {
 		endTime = System.currentTimeMillis();
 		System.out.println("Finished cleaning data... (" + (endTime - startTime) + " ms)\n");
 
-		//Constructing the suffix tree
+		//Constructing the suffix tree, unless the phrase index saved by an
+		//earlier run was built from the same coded data, with the same
+		//backend and node pruning
 		System.out.println("Started suffix tree construction...");
 		startTime = System.currentTimeMillis();
-		WordSuffixTree wordST = new WordSuffixTree(outputFolder, dc.allWords);
+		final String phraseIndexFile = outputFolder + "\\OtherOutputFiles\\phraseIndex";
+		final NodePruning nodePruning = NodePruning.NONE;
+		PhraseIndex phraseIndex = MappedPhraseIndex.open(phraseIndexFile, outputFolder + "\\CodedData", dc.allWords,
+				phraseIndexBackend, nodePruning);
+		if (phraseIndex != null)
+			System.out.println("Reusing the phrase index in " + phraseIndexFile);
+		else {
+			WordSuffixTree wordST = new WordSuffixTree(outputFolder, dc.allWords, phraseIndexBackend, nodePruning);
+			try {
+				MappedPhraseIndex.write(wordST, phraseIndexFile);
+			} catch (UnsupportedOperationException e) {
+				//too large to be mapped: the run goes on with the tree,
+				//and the next one builds it again
+				System.err.println("Error: " + e.getMessage());
+			}
+			//only the node document lists are used from here on
+			if (suffixTreeNodes.equals("compact") && wordST.getSuffixArray() == null)
+				wordST.compactNodes();
+			phraseIndex = wordST;
+		}
 		endTime = System.currentTimeMillis();
 		System.out.println("Finished suffix tree construction... (" + (endTime - startTime) + " ms)\n");
 		
 		//Constructing the phrase-based similarity matrix
 		System.out.println("Started phrase-based similarity matrix construction...");
 		startTime = System.currentTimeMillis();
-		SimilarityMatrix phraseSimMatrix = new SimilarityMatrix(wordST, "phraseBased", similarityType);
+		SimilarityMatrix phraseSimMatrix = newSimilarityMatrix(phraseIndex, "phraseBased", similarityType,
+				similarityMatrixStore, similarityMatrixFormat, outputFolder);
 		endTime = System.currentTimeMillis();
 		System.out.println("Outputting similarity matrix...");
-		phraseSimMatrix.outputSimilarityMatrix(outputFolder, 4);
+		phraseSimMatrix.outputSimilarityMatrix(outputFolder, 4, similarityMatrixOutput);
 		System.out.println("Finished phrase-based similarity matrix construction... (" + (endTime - startTime) + " ms)\n");
 		
 		//Constructing the word-based similarity matrix
 		System.out.println("Started word-based similarity matrix construction...");
 		startTime = System.currentTimeMillis();
-		SimilarityMatrix wordSimMatrix = new SimilarityMatrix(wordST, "wordBased", similarityType);
+		SimilarityMatrix wordSimMatrix = newSimilarityMatrix(phraseIndex, "wordBased", similarityType,
+				similarityMatrixStore, similarityMatrixFormat, outputFolder);
 		endTime = System.currentTimeMillis();
 		System.out.println("Outputting similarity matrix...");
-		wordSimMatrix.outputSimilarityMatrix(outputFolder, 4);
+		wordSimMatrix.outputSimilarityMatrix(outputFolder, 4, similarityMatrixOutput);
 		System.out.println("Finished word-based similarity matrix construction... (" + (endTime - startTime) + " ms)\n");
 		
 		//Document clustering using the STC algorithm
 		System.out.println("Started STC algorithm...");
 		startTime = System.currentTimeMillis();
-		STCAlgorithm stcAlg = new STCAlgorithm(wordST);
+		STCAlgorithm stcAlg = new STCAlgorithm(phraseIndex);
 		endTime = System.currentTimeMillis();
 		System.out.println("Outputting clusters...");
 		stcAlg.outputClusters(outputFolder + "\\OtherOutputFiles\\stcOutput");
@@ -85,7 +131,7 @@ public class Tester {
 		//Document clustering using the STC algorithm with the top 10 clusters
 		System.out.println("Started STC-10 algorithm...");
 		startTime = System.currentTimeMillis();
-		STCAlgorithm stc10Alg = new STCAlgorithm(wordST, 10);
+		STCAlgorithm stc10Alg = new STCAlgorithm(phraseIndex, 10);
 		endTime = System.currentTimeMillis();
 		System.out.println("Outputting clusters...");
 		stc10Alg.outputClusters(outputFolder + "\\OtherOutputFiles\\stc10Output");
@@ -94,7 +140,7 @@ public class Tester {
 		//Document clustering using the GHAC algorithm with phrased-based similarity
 		System.out.println("Started GHAC with phrased-based similarity...");
 		startTime = System.currentTimeMillis();
-		GHACAlgorithm ghacAlgPhrase = new GHACAlgorithm(phraseSimMatrix.matrix);
+		GHACAlgorithm ghacAlgPhrase = new GHACAlgorithm(phraseSimMatrix.getValues());
 		endTime = System.currentTimeMillis();
 		System.out.println("Outputting clusters...");
 		ghacAlgPhrase.outputClusters(outputFolder + "\\OtherOutputFiles\\ghacOutputPhrase");
@@ -103,7 +149,7 @@ public class Tester {
 		//Document clustering using the GHAC algorithm with word-based similarity
 		System.out.println("Started GHAC with word-based similarity...");
 		startTime = System.currentTimeMillis();
-		GHACAlgorithm ghacAlgWord = new GHACAlgorithm(wordSimMatrix.matrix);
+		GHACAlgorithm ghacAlgWord = new GHACAlgorithm(wordSimMatrix.getValues());
 		endTime = System.currentTimeMillis();
 		System.out.println("Outputting clusters...");
 		ghacAlgWord.outputClusters(outputFolder + "\\OtherOutputFiles\\ghacOutputWord");
@@ -113,7 +159,16 @@ public class Tester {
 		System.out.println("Started KNN with phrase-based similarity...");
 		startTime = System.currentTimeMillis();
 		final int K = 10;
-		KNNAlgorithm knnAlg = new KNNAlgorithm(K, phraseSimMatrix.matrix);
+		TriangularMatrix knnSimMatrix;
+		if (knnSimilarities.equals("matrix"))
+			knnSimMatrix = phraseSimMatrix.getValues();
+		else if (knnSimilarities.equals("neighborGraph"))
+			knnSimMatrix = new SimilarityMatrix(phraseIndex, "phraseBased", similarityType,
+					SimilarityMatrix.defaultEngine("phraseBased", similarityType), null, ProgressListener.CONSOLE, K)
+					.getNeighborGraph();
+		else
+			throw new UnsupportedOperationException("Unknown KNN similarities: " + knnSimilarities + "\n");
+		KNNAlgorithm knnAlg = new KNNAlgorithm(K, knnSimMatrix);
 		endTime = System.currentTimeMillis();
 		System.out.println("Outputting clusters...");
 		knnAlg.outputClusters(outputFolder + "\\OtherOutputFiles\\knnOutput");
@@ -147,7 +202,65 @@ public class Tester {
 		clusterDiag.doClusterDiagnostics(knnAlg.clusters, correctClusters);
 		System.out.println("KNN (phrase):\t" + clusterDiag.toString() + "\n");
 		
+		//With rounded similarity matrices, checking GHAC and KNN find
+		//clusters as good as with float ones
+		if (!similarityMatrixFormat.equals("float")) {
+			System.out.println("Checking the " + similarityMatrixFormat + " similarity matrices against float ones " +
+						"(tolerance " + DIAGNOSTICS_TOLERANCE + "):");
+			SimilarityMatrix phraseFloatMatrix = new SimilarityMatrix(phraseIndex, "phraseBased", similarityType);
+			checkDiagnostics("GHAC (phrase):\t", ghacAlgPhrase.clusters,
+					new GHACAlgorithm(phraseFloatMatrix.matrix).clusters, correctClusters);
+			checkDiagnostics("KNN (phrase):\t", knnAlg.clusters,
+					new KNNAlgorithm(K, phraseFloatMatrix.matrix).clusters, correctClusters);
+			SimilarityMatrix wordFloatMatrix = new SimilarityMatrix(phraseIndex, "wordBased", similarityType);
+			checkDiagnostics("GHAC (word):\t", ghacAlgWord.clusters,
+					new GHACAlgorithm(wordFloatMatrix.matrix).clusters, correctClusters);
+			System.out.println();
+		}
+		
 		System.out.println("Done.");
 	}
+	
+	//Largest difference allowed between the diagnostics of clusters found
+	//on rounded and on float similarity matrices. Rounding can swap
+	//similarities closer than its error, so the clusters can differ a little
+	private static final double DIAGNOSTICS_TOLERANCE = 0.02;
+	
+	private static void checkDiagnostics(String name, List<Set<Integer>> clusters, List<Set<Integer>> floatClusters,
+			List<Set<Integer>> correctClusters) {
+		ClusterDiagnostics diag = new ClusterDiagnostics();
+		diag.doClusterDiagnostics(clusters, correctClusters);
+		ClusterDiagnostics floatDiag = new ClusterDiagnostics();
+		floatDiag.doClusterDiagnostics(floatClusters, correctClusters);
+		double diff = diag.maxDifference(floatDiag);
+		System.out.println(name + floatDiag.toString() + " with float, largest difference = " +
+					new java.text.DecimalFormat("0.0000").format(diff) +
+					((diff <= DIAGNOSTICS_TOLERANCE) ? ", within tolerance" : ", OUT OF TOLERANCE"));
+	}
+	
+	//Similarity matrix computed with the default engine, kept on the heap
+	//or in a mapped file as "store" says, with entries in "format"
+	private static SimilarityMatrix newSimilarityMatrix(PhraseIndex phraseIndex, String method, String similarityType,
+			String store, String format, String outputFolder) {
+		TriangularMatrix values;
+		if (store.equals("heap")) {
+			if (format.equals("float"))
+				return new SimilarityMatrix(phraseIndex, method, similarityType);
+			values = new QuantizedTriangularMatrix(phraseIndex.numOfDocs(), format);
+		} else if (store.equals("mapped")) {
+			String matrixFile = outputFolder + "\\OtherOutputFiles\\" + method + "SimMatrix.bin";
+			try {
+				values = MappedTriangularMatrix.create(matrixFile, phraseIndex.numOfDocs(), format);
+			} catch (IOException e) {
+				System.err.println("Error: " + e.getMessage());
+				System.out.println("Keeping the similarity matrix on the heap instead");
+				return new SimilarityMatrix(phraseIndex, method, similarityType);
+			}
+		} else
+			throw new UnsupportedOperationException("Unknown similarity matrix store: " + store + "\n");
+		
+		return new SimilarityMatrix(phraseIndex, method, similarityType,
+				SimilarityMatrix.defaultEngine(method, similarityType), null, ProgressListener.CONSOLE, values);
+	}
 
 }